@@ -18,6 +18,8 @@ public class Constants {
 
     // effect type identifiers
     public static final int EFFECT_TYPE_ANDROID = 1;
+    public static final int EFFECT_TYPE_DYNAMICS_PROCESSING = 2;
+    public static final int EFFECT_TYPE_SOFTWARE = 3;
 
     // global settings
     public static final String AUDIOFX_GLOBAL_FILE = "global";
@@ -38,16 +40,25 @@ public class Constants {
 
     // per-device settings
     public static final boolean DEVICE_DEFAULT_GLOBAL_ENABLE = false;
+    public static final boolean DEVICE_DEFAULT_GLOBAL_MIX = false;
 
     /**
      * not really global enable, but really the device global enable...
      */
     public static final String DEVICE_AUDIOFX_GLOBAL_ENABLE = "audiofx.global.enable";
+    /**
+     * attach a single effect set to the output mix instead of one per audio session
+     */
+    public static final String DEVICE_AUDIOFX_GLOBAL_MIX = "audiofx.global.mix";
     public static final String DEVICE_AUDIOFX_BASS_ENABLE = "audiofx.bass.enable";
     public static final String DEVICE_AUDIOFX_BASS_STRENGTH = "audiofx.bass.strength";
     public static final String DEVICE_AUDIOFX_REVERB_PRESET = "audiofx.reverb.preset";
     public static final String DEVICE_AUDIOFX_VIRTUALIZER_ENABLE = "audiofx.virtualizer.enable";
     public static final String DEVICE_AUDIOFX_VIRTUALIZER_STRENGTH = "audiofx.virtualizer.strength";
+    /**
+     * loudness enhancer target gain in millibels, 0 is off
+     */
+    public static final String DEVICE_AUDIOFX_VOLUME_BOOST = "audiofx.volume.boost";
 
     public static final String DEVICE_AUDIOFX_EQ_PRESET = "audiofx.eq.preset";
     public static final String DEVICE_AUDIOFX_EQ_PRESET_LEVELS = "audiofx.eq.preset.levels";
@@ -0,0 +1,201 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx;
+
+import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_BASS_ENABLE;
+import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_BASS_STRENGTH;
+import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_EQ_PRESET;
+import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_EQ_PRESET_LEVELS;
+import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_GLOBAL_ENABLE;
+import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_GLOBAL_MIX;
+import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_REVERB_PRESET;
+import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_VIRTUALIZER_ENABLE;
+import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_VIRTUALIZER_STRENGTH;
+import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_VOLUME_BOOST;
+import static org.lineageos.audiofx.Constants.DEVICE_DEFAULT_GLOBAL_ENABLE;
+import static org.lineageos.audiofx.Constants.DEVICE_DEFAULT_GLOBAL_MIX;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.media.audiofx.PresetReverb;
+import android.util.Log;
+
+import org.lineageos.audiofx.eq.EqUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable, typed snapshot of the preferences of one output device.
+ * <p>
+ * Profiles are parsed once per device and cached for the whole process, so the service and the
+ * UI share them. Anyone writing device preferences must call {@link #refresh(Context, String)}
+ * after applying the change, which atomically replaces the cached snapshot.
+ */
+public final class DeviceProfile {
+
+    private static final String TAG = DeviceProfile.class.getSimpleName();
+
+    private static final ConcurrentHashMap<String, DeviceProfile> sProfiles =
+            new ConcurrentHashMap<>();
+
+    private final String mIdentifier;
+    private final boolean mGlobalEnabled;
+    private final boolean mGlobalMix;
+    private final boolean mBassEnabled;
+    private final short mBassStrength;
+    private final boolean mVirtualizerEnabled;
+    private final short mVirtualizerStrength;
+    private final short mReverbPreset;
+    private final short mVolumeBoost;
+    private final int mEqPreset;
+    private final short[] mEqLevels;
+
+    private DeviceProfile(String identifier, SharedPreferences prefs) {
+        mIdentifier = identifier;
+        mGlobalEnabled = prefs.getBoolean(DEVICE_AUDIOFX_GLOBAL_ENABLE,
+                DEVICE_DEFAULT_GLOBAL_ENABLE);
+        mGlobalMix = prefs.getBoolean(DEVICE_AUDIOFX_GLOBAL_MIX, DEVICE_DEFAULT_GLOBAL_MIX);
+        mBassEnabled = prefs.getBoolean(DEVICE_AUDIOFX_BASS_ENABLE, false);
+        mBassStrength = parseShort(prefs.getString(DEVICE_AUDIOFX_BASS_STRENGTH, "0"), (short) 0);
+        mVirtualizerEnabled = prefs.getBoolean(DEVICE_AUDIOFX_VIRTUALIZER_ENABLE, false);
+        mVirtualizerStrength = parseShort(
+                prefs.getString(DEVICE_AUDIOFX_VIRTUALIZER_STRENGTH, "0"), (short) 0);
+        mReverbPreset = parseShort(prefs.getString(DEVICE_AUDIOFX_REVERB_PRESET,
+                String.valueOf(PresetReverb.PRESET_NONE)), PresetReverb.PRESET_NONE);
+        mVolumeBoost = (short) Math.max(0,
+                parseShort(prefs.getString(DEVICE_AUDIOFX_VOLUME_BOOST, "0"), (short) 0));
+        mEqPreset = parseShort(prefs.getString(DEVICE_AUDIOFX_EQ_PRESET, "0"), (short) 0);
+
+        mEqLevels = parseLevels(prefs.getString(DEVICE_AUDIOFX_EQ_PRESET_LEVELS, null));
+    }
+
+    /**
+     * Get the cached profile for a device, building it on first use.
+     *
+     * @param identifier device identifier, see MasterConfigControl.getDeviceIdentifierString()
+     */
+    public static DeviceProfile get(Context context, String identifier) {
+        final DeviceProfile profile = sProfiles.get(identifier);
+        if (profile != null) {
+            return profile;
+        }
+        return sProfiles.computeIfAbsent(identifier, id -> load(context, id));
+    }
+
+    /**
+     * Rebuild the cached profile of a device from its preferences. Must be called after every
+     * write to them.
+     */
+    public static DeviceProfile refresh(Context context, String identifier) {
+        return sProfiles.compute(identifier, (id, old) -> load(context, id));
+    }
+
+    /**
+     * Drop every cached profile, e.g. after defaults have been reset.
+     */
+    public static void invalidateAll() {
+        sProfiles.clear();
+    }
+
+    private static DeviceProfile load(Context context, String identifier) {
+        return new DeviceProfile(identifier, context.getSharedPreferences(identifier, 0));
+    }
+
+    private static short parseShort(String value, short defValue) {
+        try {
+            return Short.decode(value);
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid value '" + value + "', using " + defValue);
+            return defValue;
+        }
+    }
+
+    private static short[] parseLevels(String levels) {
+        if (levels == null) {
+            return null;
+        }
+        try {
+            return EqUtils.convertDecibelsToMillibelsInShorts(EqUtils.stringBandsToFloats(levels));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Invalid eq levels '" + levels + "'");
+            return null;
+        }
+    }
+
+    public String getIdentifier() {
+        return mIdentifier;
+    }
+
+    public boolean isGlobalEnabled() {
+        return mGlobalEnabled;
+    }
+
+    /**
+     * @return true if effects should be attached once to the output mix (session 0) rather than
+     * to every audio session
+     */
+    public boolean isGlobalMixEnabled() {
+        return mGlobalMix;
+    }
+
+    public boolean isBassEnabled() {
+        return mBassEnabled;
+    }
+
+    /**
+     * @return strength with range [0-1000]
+     */
+    public short getBassStrength() {
+        return mBassStrength;
+    }
+
+    public boolean isVirtualizerEnabled() {
+        return mVirtualizerEnabled;
+    }
+
+    /**
+     * @return strength with range [0-1000]
+     */
+    public short getVirtualizerStrength() {
+        return mVirtualizerStrength;
+    }
+
+    public short getReverbPreset() {
+        return mReverbPreset;
+    }
+
+    /**
+     * @return loudness enhancer target gain in millibels, 0 if volume boost is off
+     */
+    public short getVolumeBoost() {
+        return mVolumeBoost;
+    }
+
+    public int getEqPreset() {
+        return mEqPreset;
+    }
+
+    /**
+     * @return the saved equalizer levels in millibels, or null if none were saved. The array is
+     * shared and must not be modified.
+     */
+    public short[] getEqLevels() {
+        return mEqLevels;
+    }
+
+    @Override
+    public String toString() {
+        return "DeviceProfile [ " + mIdentifier
+                + " global: " + mGlobalEnabled
+                + " mix: " + mGlobalMix
+                + " bass: " + mBassEnabled + "/" + mBassStrength
+                + " virtualizer: " + mVirtualizerEnabled + "/" + mVirtualizerStrength
+                + " reverb: " + mReverbPreset
+                + " volumeBoost: " + mVolumeBoost
+                + " eqPreset: " + mEqPreset
+                + " ]";
+    }
+}
@@ -19,6 +19,7 @@ import org.lineageos.audiofx.Constants;
 import org.lineageos.audiofx.Preset;
 import org.lineageos.audiofx.R;
 import org.lineageos.audiofx.eq.EqUtils;
+import org.lineageos.audiofx.eq.FrequencyResponse;
 import org.lineageos.audiofx.service.AudioFxService;
 
 import java.util.ArrayList;
@@ -47,6 +48,7 @@ public class EqualizerManager {
     private int mPredefinedPresets;
     private float[] mCenterFreqs;
     private float[] mGlobalLevels;
+    private FrequencyResponse mResponse;
 
     private final AtomicBoolean mAnimatingToCustom = new AtomicBoolean(false);
 
@@ -60,6 +62,12 @@ public class EqualizerManager {
 
     private String mZeroedBandString;
 
+    // frequency response model
+    private static final int RESPONSE_POINTS = 128;
+    private static final int RESPONSE_SAMPLE_RATE = 48000;
+    // the model folds back above nyquist, keep the last point just below it
+    private static final float RESPONSE_MAX_FREQUENCY = RESPONSE_SAMPLE_RATE / 2f - 1f;
+
     private static final int MSG_SAVE_PRESETS = 1;
     private static final int MSG_SEND_EQ_OVERRIDE = 2;
 
@@ -71,7 +79,8 @@ public class EqualizerManager {
                     Constants.saveCustomPresets(mContext, mEqPresets);
                     break;
                 case MSG_SEND_EQ_OVERRIDE:
-                    mConfig.overrideEqLevels((short) msg.arg1, (short) msg.arg2);
+                    // send the whole vector once, no matter how many bands moved this frame
+                    mConfig.overrideEqLevels(mGlobalLevels);
                     break;
             }
             return true;
@@ -111,6 +120,9 @@ public class EqualizerManager {
         mMinFreq = mCenterFreqs[0] / 2;
         mMaxFreq = (float) Math.pow(mCenterFreqs[mNumBands - 1], 2) / mCenterFreqs[mNumBands - 2]
                 / 2;
+        mResponse = new FrequencyResponse(centerFreqs, mMinFreq,
+                Math.min(mMaxFreq, RESPONSE_MAX_FREQUENCY), RESPONSE_POINTS,
+                RESPONSE_SAMPLE_RATE);
 
         // setup equalizer presets
         final int numPresets = Integer.parseInt(getGlobalPref("equalizer.number_of_presets", "0"));
@@ -136,7 +148,7 @@ public class EqualizerManager {
         mEqPresets.addAll(Constants.getCustomPresets(mContext));
 
         // setup default preset for speaker
-        mCurrentPreset = Integer.parseInt(getPref(Constants.DEVICE_AUDIOFX_EQ_PRESET, "0"));
+        mCurrentPreset = mConfig.getProfile().getEqPreset();
         if (mCurrentPreset > mEqPresets.size() - 1) {
             mCurrentPreset = 0;
         }
@@ -205,7 +217,7 @@ public class EqualizerManager {
 
     void onPreDeviceChanged() {
         // need to update the current preset based on the device here.
-        int newPreset = Integer.parseInt(getPref(Constants.DEVICE_AUDIOFX_EQ_PRESET, "0"));
+        int newPreset = mConfig.getProfile().getEqPreset();
         if (newPreset > mEqPresets.size() - 1) {
             newPreset = 0;
         }
@@ -300,9 +312,9 @@ public class EqualizerManager {
 
         mGlobalLevels[band] = dB;
 
-        if (fromSystem && !mConfig.isUserDeviceOverride()) {
-            // quickly convert decibel to millibel and send away to the service
-            mHandler.obtainMessage(MSG_SEND_EQ_OVERRIDE, band, (short) (dB * 100)).sendToTarget();
+        if (fromSystem && !mConfig.isUserDeviceOverride()
+                && !mHandler.hasMessages(MSG_SEND_EQ_OVERRIDE)) {
+            mHandler.sendEmptyMessage(MSG_SEND_EQ_OVERRIDE);
         }
 
         mConfig.getCallbacks().notifyBandLevelChangeChanged(band, dB, fromSystem);
@@ -445,6 +457,26 @@ public class EqualizerManager {
         return mGlobalLevels[band];
     }
 
+    /**
+     * @return the response of the current levels in decibels, at the points of
+     * {@link #getFrequencyResponseModel()}. Cheap enough to call on every frame.
+     */
+    public float[] getFrequencyResponse() {
+        return mResponse.compute(mGlobalLevels);
+    }
+
+    /**
+     * @return the highest gain the current levels produce, in decibels
+     */
+    public float getPeakGain() {
+        mResponse.compute(mGlobalLevels);
+        return mResponse.getPeak();
+    }
+
+    public FrequencyResponse getFrequencyResponseModel() {
+        return mResponse;
+    }
+
     /*===============
      * preset methods
      *===============*/
@@ -609,11 +641,7 @@ public class EqualizerManager {
         mConfig.getGlobalPrefs().edit().putString(key, value).apply();
     }
 
-    private String getPref(String key, String defValue) {
-        return mConfig.getPrefs().getString(key, defValue);
-    }
-
     private void setPref(String key, String value) {
-        mConfig.getPrefs().edit().putString(key, value).apply();
+        mConfig.applyPrefs(mConfig.getPrefs().edit().putString(key, value));
     }
 }
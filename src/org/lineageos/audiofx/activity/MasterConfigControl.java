@@ -17,7 +17,6 @@ import static android.media.AudioDeviceInfo.TYPE_USB_DEVICE;
 import static android.media.AudioDeviceInfo.TYPE_USB_HEADSET;
 import static android.media.AudioDeviceInfo.TYPE_WIRED_HEADPHONES;
 import static android.media.AudioDeviceInfo.TYPE_WIRED_HEADSET;
-import static android.media.AudioDeviceInfo.convertDeviceTypeToInternalDevice;
 
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -34,9 +33,10 @@ import android.util.Log;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import org.lineageos.audiofx.Constants;
+import org.lineageos.audiofx.DeviceProfile;
+import org.lineageos.audiofx.service.AudioDeviceTable;
 import org.lineageos.audiofx.service.AudioFxService;
 
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -67,6 +67,7 @@ public class MasterConfigControl {
     private final StateCallbacks mCallbacks;
     private final EqualizerManager mEqManager;
     private final AudioManager mAudioManager;
+    private final AudioDeviceTable mDevices;
 
     private static MasterConfigControl sInstance;
     private boolean mShouldBindToService = false;
@@ -82,6 +83,7 @@ public class MasterConfigControl {
         mContext = context.getApplicationContext();
 
         mAudioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        mDevices = AudioDeviceTable.getInstance(context);
 
         mCallbacks = new StateCallbacks(this);
         mEqManager = new EqualizerManager(context, this);
@@ -179,13 +181,13 @@ public class MasterConfigControl {
     }
 
     public synchronized void setCurrentDeviceEnabled(boolean isChecked) {
-        getPrefs().edit().putBoolean(Constants.DEVICE_AUDIOFX_GLOBAL_ENABLE, isChecked).apply();
+        applyPrefs(getPrefs().edit().putBoolean(Constants.DEVICE_AUDIOFX_GLOBAL_ENABLE, isChecked));
         getCallbacks().notifyGlobalToggle(isChecked);
         updateService(AudioFxService.ALL_CHANGED);
     }
 
     public synchronized boolean isCurrentDeviceEnabled() {
-        return getPrefs().getBoolean(Constants.DEVICE_AUDIOFX_GLOBAL_ENABLE, false);
+        return getProfile().isGlobalEnabled();
     }
 
     public synchronized SharedPreferences getGlobalPrefs() {
@@ -226,10 +228,9 @@ public class MasterConfigControl {
     public AudioDeviceInfo getSystemDevice() {
         if (mCurrentDevice == null) {
             final int forMusic = mAudioManager.getDevicesForStream(AudioManager.STREAM_MUSIC);
-            for (AudioDeviceInfo ai : getConnectedDevices()) {
-                if ((convertDeviceTypeToInternalDevice(ai.getType()) & forMusic) > 0) {
-                    return ai;
-                }
+            final List<AudioDeviceInfo> devices = mDevices.getDevicesForInternalMask(forMusic);
+            if (!devices.isEmpty()) {
+                return devices.get(0);
             }
         }
         return mCurrentDevice;
@@ -247,28 +248,11 @@ public class MasterConfigControl {
     }
 
     public AudioDeviceInfo getDeviceById(int id) {
-        for (AudioDeviceInfo ai : mAudioManager.getDevices(AudioManager.GET_DEVICES_OUTPUTS)) {
-            if (ai.getId() == id) {
-                return ai;
-            }
-        }
-        return null;
+        return mDevices.getDeviceById(id);
     }
 
     public List<AudioDeviceInfo> getConnectedDevices(int... filter) {
-        final List<AudioDeviceInfo> devices = new ArrayList<AudioDeviceInfo>();
-        for (AudioDeviceInfo ai : mAudioManager.getDevices(AudioManager.GET_DEVICES_OUTPUTS)) {
-            if (filter.length == 0) {
-                devices.add(ai);
-            } else {
-                for (int j : filter) {
-                    if (ai.getType() == j) {
-                        devices.add(ai);
-                    }
-                }
-            }
-        }
-        return devices;
+        return mDevices.getDevices(filter);
     }
 
     public String getCurrentDeviceIdentifier() {
@@ -279,6 +263,22 @@ public class MasterConfigControl {
         return mContext.getSharedPreferences(getCurrentDeviceIdentifier(), 0);
     }
 
+    /**
+     * @return the cached, typed snapshot of the current device's preferences
+     */
+    public DeviceProfile getProfile() {
+        return DeviceProfile.get(mContext, getCurrentDeviceIdentifier());
+    }
+
+    /**
+     * Apply an edit of the current device's preferences and refresh its cached profile, so the
+     * service sees the change on its next update.
+     */
+    public void applyPrefs(SharedPreferences.Editor editor) {
+        editor.apply();
+        DeviceProfile.refresh(mContext, getCurrentDeviceIdentifier());
+    }
+
     public boolean hasBassBoost() {
         return getGlobalPrefs().getBoolean(Constants.AUDIOFX_GLOBAL_HAS_BASSBOOST, false);
     }
@@ -292,18 +292,50 @@ public class MasterConfigControl {
     }
 
     public boolean getReverbEnabled() {
-        return getPrefs().getString(Constants.DEVICE_AUDIOFX_REVERB_PRESET, "0").equals("1");
+        return getProfile().getReverbPreset() == 1;
     }
 
     public void setReverbEnabled(boolean enable) {
-        getPrefs().edit().putString(Constants.DEVICE_AUDIOFX_REVERB_PRESET,
-                enable ? "1" : "0").apply();
+        applyPrefs(getPrefs().edit().putString(Constants.DEVICE_AUDIOFX_REVERB_PRESET,
+                enable ? "1" : "0"));
         updateService(AudioFxService.REVERB_CHANGED);
     }
 
-    void overrideEqLevels(short band, short level) {
+    /**
+     * @return loudness enhancer target gain in millibels, 0 if off
+     */
+    public short getVolumeBoost() {
+        return getProfile().getVolumeBoost();
+    }
+
+    /**
+     * @param gain loudness enhancer target gain in millibels, 0 turns it off
+     */
+    public void setVolumeBoost(int gain) {
+        applyPrefs(getPrefs().edit().putString(Constants.DEVICE_AUDIOFX_VOLUME_BOOST,
+                String.valueOf(Math.max(0, gain))));
+        updateService(AudioFxService.VOLUME_BOOST_CHANGED);
+    }
+
+    /**
+     * @return true if the current device runs one shared EffectSet on the output mix
+     */
+    public boolean isGlobalMixEnabled() {
+        return getProfile().isGlobalMixEnabled();
+    }
+
+    /**
+     * @param enabled true to process the output mix instead of each session, only takes effect
+     *                where the platform supports it
+     */
+    public void setGlobalMixEnabled(boolean enabled) {
+        applyPrefs(getPrefs().edit().putBoolean(Constants.DEVICE_AUDIOFX_GLOBAL_MIX, enabled));
+        updateService(AudioFxService.ALL_CHANGED);
+    }
+
+    void overrideEqLevels(float[] levels) {
         if (checkService()) {
-            mService.setOverrideLevels(band, level);
+            mService.setOverrideLevels(levels);
         }
     }
 
@@ -9,73 +9,105 @@ package org.lineageos.audiofx.backends;
 import android.media.AudioDeviceInfo;
 import android.media.audiofx.AudioEffect;
 import android.media.audiofx.BassBoost;
+import android.media.audiofx.DynamicsProcessing;
+import android.media.audiofx.LoudnessEnhancer;
 import android.media.audiofx.PresetReverb;
 import android.media.audiofx.Virtualizer;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.lineageos.audiofx.Constants;
 
+import java.util.UUID;
+
 /**
  * EffectSet which comprises standard Android effects
+ * <p>
+ * Only the equalizer is created up front. Bass boost, virtualizer and reverb are created when
+ * they are first enabled, and released again by {@link #trimIdleEffects(long)} once they have
+ * been disabled for long enough. A flat equalizer curve or a zero strength counts as disabled.
+ * <p>
+ * Pre-gain uses a gain-only DynamicsProcessing instance, created the same way once some
+ * headroom is needed.
  */
 class AndroidEffects extends EffectSetWithAndroidEq {
 
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final int CHANNEL_COUNT = 2;
+
+    /**
+     * Parameters staged between beginUpdate() and commitUpdate()
+     */
+    private static final int UNSET = Integer.MIN_VALUE;
+
+    private static final int TYPE_BASS_BOOST = 0;
+    private static final int TYPE_VIRTUALIZER = 1;
+    private static final int TYPE_PRESET_REVERB = 2;
+    private static final int TYPE_PRE_GAIN = 3;
+    private static final int TYPE_VOLUME_BOOST = 4;
+
+    /**
+     * Which of the effect types above the platform provides, queried once
+     */
+    private static volatile boolean[] sAvailable;
+
     /**
      * Session-specific bassboost
      */
-    private BassBoost mBassBoost;
+    private final LazyEffect mBassBoost = new LazyEffect("bass boost", TYPE_BASS_BOOST,
+            SHADOW_BASS_ENABLED, SHADOW_BASS_STRENGTH, BassBoost.PARAM_STRENGTH);
 
     /**
      * Session-specific virtualizer
      */
-    private Virtualizer mVirtualizer;
+    private final LazyEffect mVirtualizer = new LazyEffect("virtualizer", TYPE_VIRTUALIZER,
+            SHADOW_VIRTUALIZER_ENABLED, SHADOW_VIRTUALIZER_STRENGTH, Virtualizer.PARAM_STRENGTH);
 
     /**
      * Session-specific reverb
      */
-    private PresetReverb mPresetReverb;
+    private final LazyEffect mPresetReverb = new LazyEffect("preset reverb", TYPE_PRESET_REVERB,
+            SHADOW_REVERB_ENABLED, SHADOW_REVERB_PRESET, PresetReverb.PARAM_PRESET);
 
-    public AndroidEffects(int sessionId, AudioDeviceInfo deviceInfo) {
-        super(sessionId, deviceInfo);
-    }
+    /**
+     * Session-specific headroom stage, its value is the gain in millibels
+     */
+    private final LazyEffect mPreGain = new LazyEffect("pre-gain", TYPE_PRE_GAIN,
+            SHADOW_PRE_GAIN_ENABLED, SHADOW_PRE_GAIN, 0);
 
-    @Override
-    protected void onCreate() {
-        super.onCreate();
+    /**
+     * Session-specific loudness enhancer, its value is the target gain in millibels
+     */
+    private final LazyEffect mVolumeBoost = new LazyEffect("volume boost", TYPE_VOLUME_BOOST,
+            SHADOW_VOLUME_BOOST_ENABLED, SHADOW_VOLUME_BOOST,
+            LoudnessEnhancer.PARAM_TARGET_GAIN_MB);
+
+    private int mPendingBassEnabled = UNSET;
+    private int mPendingBassStrength = UNSET;
+    private int mPendingVirtualizerEnabled = UNSET;
+    private int mPendingVirtualizerStrength = UNSET;
+    private int mPendingReverbEnabled = UNSET;
+    private int mPendingReverbPreset = UNSET;
+    private int mPendingPreGain = UNSET;
+    private int mPendingVolumeBoost = UNSET;
 
-        mBassBoost = new BassBoost(100, mSessionId);
-        mVirtualizer = new Virtualizer(100, mSessionId);
-        mPresetReverb = new PresetReverb(100, mSessionId);
+    public AndroidEffects(int sessionId, AudioDeviceInfo deviceInfo) {
+        super(sessionId, deviceInfo);
     }
 
     @Override
     public void release() {
         super.release();
 
-        try {
-            if (mBassBoost != null) {
-                mBassBoost.release();
-            }
-        } catch (Exception e) {
-            // ignored;
-        }
-        try {
-            if (mVirtualizer != null) {
-                mVirtualizer.release();
-            }
-        } catch (Exception e) {
-            // ignored
+        // release() is also called from the constructor if onCreate() fails
+        if (mBassBoost != null) {
+            mBassBoost.release();
+            mVirtualizer.release();
+            mPresetReverb.release();
+            mPreGain.release();
+            mVolumeBoost.release();
         }
-        try {
-            if (mPresetReverb != null) {
-                mPresetReverb.release();
-            }
-        } catch (Exception e) {
-            // ignored
-        }
-        mBassBoost = null;
-        mVirtualizer = null;
-        mPresetReverb = null;
     }
 
     @Override
@@ -90,92 +122,163 @@ class AndroidEffects extends EffectSetWithAndroidEq {
         if (!globalEnabled) {
             // disable everything. it will get explictly enabled
             // individually when necessary.
-            try {
-                if (mVirtualizer != null) {
-                    mVirtualizer.setEnabled(false);
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Unable to disable virtualizer!", e);
-            }
-            try {
-                if (mBassBoost != null) {
-                    mBassBoost.setEnabled(false);
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Unable to disable bass boost!", e);
-            }
-            try {
-                if (mPresetReverb != null) {
-                    mPresetReverb.setEnabled(false);
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Unable to disable reverb!", e);
-            }
+            mVirtualizer.setEnabled(false);
+            mBassBoost.setEnabled(false);
+            mPresetReverb.setEnabled(false);
+            mPreGain.setEnabled(false);
+            mVolumeBoost.setEnabled(false);
         }
     }
 
+    @Override
+    public boolean commitUpdate() {
+        // make room before the equalizer boosts, and only give it back once they are gone
+        final boolean gainFirst = mPendingPreGain != UNSET
+                && mPendingPreGain < mPreGain.getValue();
+        // the headroom stage only turns the signal down, never while everything else is off
+        final int preGainEnabled = mGlobalEnabled ? 1 : 0;
+        if (gainFirst) {
+            commit(mPreGain, preGainEnabled, mPendingPreGain);
+        }
+
+        final boolean result = super.commitUpdate();
+
+        if (!gainFirst && mPendingPreGain != UNSET) {
+            commit(mPreGain, preGainEnabled, mPendingPreGain);
+        }
+
+        // one parameter write per effect, followed by its enable state
+        commit(mBassBoost, mPendingBassEnabled, mPendingBassStrength);
+        commit(mVirtualizer, mPendingVirtualizerEnabled, mPendingVirtualizerStrength);
+        commit(mPresetReverb, mPendingReverbEnabled, mPendingReverbPreset);
+        if (mPendingVolumeBoost != UNSET) {
+            commit(mVolumeBoost, 1, mPendingVolumeBoost);
+        }
+
+        mPendingBassEnabled = mPendingBassStrength = UNSET;
+        mPendingVirtualizerEnabled = mPendingVirtualizerStrength = UNSET;
+        mPendingReverbEnabled = mPendingReverbPreset = UNSET;
+        mPendingPreGain = mPendingVolumeBoost = UNSET;
+        return result;
+    }
+
+    private static void commit(LazyEffect effect, int enabled, int value) {
+        if (enabled != UNSET || value != UNSET) {
+            effect.set(enabled, value);
+        }
+    }
+
+    @Override
+    public long trimIdleEffects(long idleMs) {
+        final long now = SystemClock.uptimeMillis();
+        return earliest(
+                earliest(mBassBoost.trim(now, idleMs), mVirtualizer.trim(now, idleMs)),
+                earliest(mPresetReverb.trim(now, idleMs),
+                        earliest(mPreGain.trim(now, idleMs), mVolumeBoost.trim(now, idleMs))));
+    }
+
+    private static long earliest(long a, long b) {
+        if (a < 0) {
+            return b;
+        }
+        return b < 0 ? a : Math.min(a, b);
+    }
+
     @Override
     public boolean hasVirtualizer() {
-        return mVirtualizer != null;
+        return isAvailable(TYPE_VIRTUALIZER);
     }
 
     @Override
     public boolean hasReverb() {
-        return mPresetReverb != null;
+        return isAvailable(TYPE_PRESET_REVERB);
     }
 
     @Override
     public boolean hasBassBoost() {
-        return mBassBoost != null;
+        return isAvailable(TYPE_BASS_BOOST);
     }
 
     @Override
     public void enableBassBoost(boolean enable) {
-        try {
-            if (mBassBoost != null) {
-                mBassBoost.setEnabled(enable);
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Unable to " + (enable ? "enable" : "disable") + " bass boost!", e);
+        if (isUpdating()) {
+            mPendingBassEnabled = enable ? 1 : 0;
+            return;
         }
+        mBassBoost.setEnabled(enable);
     }
 
     @Override
     public void setBassBoostStrength(short strength) {
-        setParameterSafe(mBassBoost, BassBoost.PARAM_STRENGTH, strength);
+        if (isUpdating()) {
+            mPendingBassStrength = strength;
+            return;
+        }
+        mBassBoost.setValue(strength);
     }
 
     @Override
     public void enableVirtualizer(boolean enable) {
-        try {
-            if (mVirtualizer != null) {
-                mVirtualizer.setEnabled(enable);
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Unable to " + (enable ? "enable" : "disable") + " virtualizer!", e);
+        if (isUpdating()) {
+            mPendingVirtualizerEnabled = enable ? 1 : 0;
+            return;
         }
+        mVirtualizer.setEnabled(enable);
     }
 
     @Override
     public void setVirtualizerStrength(short strength) {
-        setParameterSafe(mVirtualizer, Virtualizer.PARAM_STRENGTH, strength);
+        if (isUpdating()) {
+            mPendingVirtualizerStrength = strength;
+            return;
+        }
+        mVirtualizer.setValue(strength);
     }
 
     @Override
     public void enableReverb(boolean enable) {
-        try {
-            if (mPresetReverb != null) {
-                mPresetReverb.setEnabled(enable);
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Unable to " + (enable ? "enable" : "disable") + " preset reverb!", e);
+        if (isUpdating()) {
+            mPendingReverbEnabled = enable ? 1 : 0;
+            return;
         }
-
+        mPresetReverb.setEnabled(enable);
     }
 
     @Override
     public void setReverbPreset(short preset) {
-        setParameterSafe(mPresetReverb, PresetReverb.PARAM_PRESET, preset);
+        if (isUpdating()) {
+            mPendingReverbPreset = preset;
+            return;
+        }
+        mPresetReverb.setValue(preset);
+    }
+
+    @Override
+    public boolean hasVolumeBoost() {
+        return isAvailable(TYPE_VOLUME_BOOST);
+    }
+
+    /**
+     * The loudness enhancer is only created once the gain is above zero.
+     */
+    @Override
+    public void setVolumeBoost(short gain) {
+        if (isUpdating()) {
+            mPendingVolumeBoost = gain;
+            return;
+        }
+        mVolumeBoost.setValue(gain);
+        mVolumeBoost.setEnabled(true);
+    }
+
+    @Override
+    public void setPreGain(float gain) {
+        final short millibels = (short) Math.round(gain * 100);
+        if (isUpdating()) {
+            mPendingPreGain = millibels;
+            return;
+        }
+        mPreGain.set(mGlobalEnabled ? 1 : 0, millibels);
     }
 
     @Override
@@ -183,14 +286,252 @@ class AndroidEffects extends EffectSetWithAndroidEq {
         return Constants.EFFECT_TYPE_ANDROID;
     }
 
-    private void setParameterSafe(AudioEffect e, int p, short v) {
-        if (e == null) {
+    private static boolean isAvailable(int type) {
+        boolean[] available = sAvailable;
+        if (available == null) {
+            available = new boolean[5];
+            try {
+                final UUID[] types = {
+                        AudioEffect.EFFECT_TYPE_BASS_BOOST,
+                        AudioEffect.EFFECT_TYPE_VIRTUALIZER,
+                        AudioEffect.EFFECT_TYPE_PRESET_REVERB,
+                        AudioEffect.EFFECT_TYPE_DYNAMICS_PROCESSING,
+                        AudioEffect.EFFECT_TYPE_LOUDNESS_ENHANCER
+                };
+                for (AudioEffect.Descriptor d : AudioEffect.queryEffects()) {
+                    for (int i = 0; i < types.length; i++) {
+                        if (types[i].equals(d.type)) {
+                            available[i] = true;
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Unable to query effects, assuming all are available", e);
+                available[TYPE_BASS_BOOST] = true;
+                available[TYPE_VIRTUALIZER] = true;
+                available[TYPE_PRESET_REVERB] = true;
+                available[TYPE_PRE_GAIN] = false;
+                available[TYPE_VOLUME_BOOST] = false;
+            }
+            sAvailable = available;
+        }
+        return available[type];
+    }
+
+    private void setEnabledSafe(AudioEffect e, int slot, boolean enable, String name) {
+        if (e == null || !shadowChanged(slot, enable ? 1 : 0)) {
             return;
         }
         try {
-            e.setParameter(p, v);
+            if (e.setEnabled(enable) != AudioEffect.SUCCESS) {
+                invalidateShadow(slot);
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, "Unable to " + (enable ? "enable" : "disable") + " " + name + "!", ex);
+            invalidateShadow(slot);
+        }
+    }
+
+    private void setParameterSafe(AudioEffect e, int slot, int p, short v) {
+        if (e == null || !shadowChanged(slot, v)) {
+            return;
+        }
+        try {
+            if (e.setParameter(p, v) != AudioEffect.SUCCESS) {
+                invalidateShadow(slot);
+            }
         } catch (Exception ex) {
             Log.e(TAG, "Failed to set param " + p + " for effect " + e.getDescriptor().name, ex);
+            invalidateShadow(slot);
+        }
+    }
+
+    private void setInputGainSafe(AudioEffect e, int slot, short millibels) {
+        if (e == null || !shadowChanged(slot, millibels)) {
+            return;
+        }
+        try {
+            ((DynamicsProcessing) e).setInputGainAllChannelsTo(millibels / 100f);
+        } catch (Exception ex) {
+            Log.e(TAG, "Failed to set pre-gain for sessionId=" + mSessionId, ex);
+            invalidateShadow(slot);
+        }
+    }
+
+    private void setTargetGainSafe(AudioEffect e, int slot, short millibels) {
+        if (e == null || !shadowChanged(slot, millibels)) {
+            return;
+        }
+        try {
+            ((LoudnessEnhancer) e).setTargetGain(millibels);
+        } catch (Exception ex) {
+            Log.e(TAG, "Failed to set volume boost for sessionId=" + mSessionId, ex);
+            invalidateShadow(slot);
+        }
+    }
+
+    /**
+     * An effect which is only instantiated once it gets enabled, and released again after it
+     * has been disabled for a while. Its parameter is remembered while it does not exist.
+     */
+    private final class LazyEffect {
+        private final String mName;
+        private final int mType;
+        private final int mEnabledSlot;
+        private final int mValueSlot;
+        private final int mParam;
+
+        private AudioEffect mEffect;
+        private int mValue = UNSET;
+        private boolean mRequested;
+        private long mDisabledSince = 0;
+
+        LazyEffect(String name, int type, int enabledSlot, int valueSlot, int param) {
+            mName = name;
+            mType = type;
+            mEnabledSlot = enabledSlot;
+            mValueSlot = valueSlot;
+            mParam = param;
+        }
+
+        void setValue(short value) {
+            mValue = value;
+            write(value);
+            apply();
+        }
+
+        int getValue() {
+            return mValue == UNSET ? 0 : mValue;
+        }
+
+        private void write(short value) {
+            if (mType == TYPE_PRE_GAIN) {
+                setInputGainSafe(mEffect, mValueSlot, value);
+            } else if (mType == TYPE_VOLUME_BOOST) {
+                setTargetGainSafe(mEffect, mValueSlot, value);
+            } else {
+                setParameterSafe(mEffect, mValueSlot, mParam, value);
+            }
+        }
+
+        void setEnabled(boolean enable) {
+            mRequested = enable;
+            apply();
+        }
+
+        /**
+         * Stage a new parameter and enable state together so the effect is only created,
+         * enabled or disabled once for both.
+         *
+         * @param enabled 1 to enable, 0 to disable, UNSET to keep the current request
+         * @param value   the new parameter, UNSET to keep the current one
+         */
+        void set(int enabled, int value) {
+            if (value != UNSET) {
+                mValue = value;
+                write((short) value);
+            }
+            if (enabled != UNSET) {
+                mRequested = enabled != 0;
+            }
+            apply();
+        }
+
+        /**
+         * A strength or preset of zero does nothing, so the effect stays disabled (and
+         * eventually released) until it has some work to do.
+         * <p>
+         * Enabling is not ramped, a freshly created or re-enabled effect starts at its full
+         * strength on the next buffer and may click. The platform effects offer no ramp of
+         * their own.
+         */
+        private void apply() {
+            final boolean enable = mRequested && mValue != 0;
+            if (enable && mEffect == null && !create()) {
+                return;
+            }
+            if (mEffect == null) {
+                // nothing to disable
+                return;
+            }
+            setEnabledSafe(mEffect, mEnabledSlot, enable, mName);
+            if (enable) {
+                mDisabledSince = 0;
+            } else if (mDisabledSince == 0) {
+                mDisabledSince = SystemClock.uptimeMillis();
+            }
+        }
+
+        private boolean create() {
+            if (!isAvailable(mType)) {
+                return false;
+            }
+            try {
+                switch (mType) {
+                    case TYPE_BASS_BOOST:
+                        mEffect = new BassBoost(getPriority(), mSessionId);
+                        break;
+                    case TYPE_VIRTUALIZER:
+                        mEffect = new Virtualizer(getPriority(), mSessionId);
+                        break;
+                    case TYPE_PRESET_REVERB:
+                        mEffect = new PresetReverb(getPriority(), mSessionId);
+                        break;
+                    case TYPE_VOLUME_BOOST:
+                        mEffect = new LoudnessEnhancer(mSessionId);
+                        break;
+                    case TYPE_PRE_GAIN:
+                        // input gain only, every stage off
+                        mEffect = new DynamicsProcessing(getPriority(), mSessionId,
+                                new DynamicsProcessing.Config.Builder(
+                                        DynamicsProcessing.VARIANT_FAVOR_TIME_RESOLUTION,
+                                        CHANNEL_COUNT, false, 0, false, 0, false, 0, false)
+                                        .build());
+                        break;
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Unable to create " + mName + " for session " + mSessionId, e);
+                mEffect = null;
+                return false;
+            }
+            watchControl(mEffect, mEnabledSlot, mValueSlot);
+            // a fresh instance holds its defaults, not what we sent to the last one
+            invalidateShadow(mEnabledSlot);
+            invalidateShadow(mValueSlot);
+            if (mValue != UNSET) {
+                write((short) mValue);
+            }
+            return true;
+        }
+
+        /**
+         * @return milliseconds until this effect may be released, or -1 if it is not waiting
+         */
+        long trim(long now, long idleMs) {
+            if (mEffect == null || mDisabledSince == 0) {
+                return -1;
+            }
+            final long idle = now - mDisabledSince;
+            if (idle < idleMs) {
+                return idleMs - idle;
+            }
+            if (DEBUG) Log.d(TAG, "releasing idle " + mName + " for session " + mSessionId);
+            release();
+            return -1;
+        }
+
+        void release() {
+            try {
+                if (mEffect != null) {
+                    mEffect.release();
+                }
+            } catch (Exception e) {
+                // ignored
+            }
+            mEffect = null;
+            mDisabledSince = 0;
+            invalidateShadow(mEnabledSlot);
+            invalidateShadow(mValueSlot);
         }
     }
 }
@@ -0,0 +1,411 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.backends;
+
+import android.media.AudioDeviceInfo;
+import android.media.audiofx.DynamicsProcessing;
+import android.util.Log;
+
+import org.lineageos.audiofx.Constants;
+
+/**
+ * EffectSet built on a single DynamicsProcessing instance per session: a pre-EQ with a
+ * configurable number of log-spaced bands, followed by a limiter whose post gain is used as the
+ * output gain stage.
+ * <p>
+ * Bass boost is folded into the pre-EQ as a shelf over the lowest bands. There is no
+ * virtualizer or reverb.
+ */
+class DynamicsProcessingEffects extends EffectSet {
+
+    static final int[] SUPPORTED_BAND_COUNTS = {10, 15, 31};
+    static final int DEFAULT_BAND_COUNT = 10;
+
+    private static final int CHANNEL_COUNT = 2;
+    private static final float FRAME_DURATION_MS = 10f;
+
+    private static final float MIN_FREQUENCY = 20f;
+    private static final float MAX_FREQUENCY = 20000f;
+    private static final short LEVEL_RANGE_MB = 1500;
+
+    private static final String PRESET_FLAT = "Flat";
+
+    // bass boost: full gain up to BASS_FULL_HZ, fading out towards BASS_CUTOFF_HZ
+    private static final float BASS_MAX_DB = 10f;
+    private static final float BASS_FULL_HZ = 60f;
+    private static final float BASS_CUTOFF_HZ = 150f;
+
+    private static final float LIMITER_ATTACK_MS = 1f;
+    private static final float LIMITER_RELEASE_MS = 60f;
+    private static final float LIMITER_RATIO = 10f;
+    private static final float LIMITER_THRESHOLD_DB = -1f;
+
+    private final int mBandCount;
+    private final int[] mCenterFrequencies; // millihertz
+    private final float[] mBassWeights;
+
+    private DynamicsProcessing mDynamics;
+    private DynamicsProcessing.Eq mPreEq;
+    private DynamicsProcessing.Limiter mLimiter;
+
+    /**
+     * User curve in millibels. Bass boost is added on top when the bands are flushed.
+     */
+    private final short[] mLevels;
+    private boolean mLevelsDirty;
+
+    private boolean mEqRequested;
+    private boolean mBassRequested;
+    private short mBassStrength;
+    private float mPostGain;
+    private float mPreGain;
+    private float mPendingPreGain;
+    private boolean mPendingPreGainDirty;
+
+    public DynamicsProcessingEffects(int sessionId, AudioDeviceInfo deviceInfo, int bandCount) {
+        super(sessionId, deviceInfo);
+        mBandCount = bandCount;
+        mLevels = new short[bandCount];
+        mCenterFrequencies = new int[bandCount];
+        mBassWeights = new float[bandCount];
+
+        final float[] cutoffs = new float[bandCount];
+        final double span = Math.log(MAX_FREQUENCY / MIN_FREQUENCY);
+        for (int i = 0; i < bandCount; i++) {
+            cutoffs[i] = (float) (MIN_FREQUENCY * Math.exp(span * (i + 1) / bandCount));
+            final double center = MIN_FREQUENCY * Math.exp(span * (i + 0.5) / bandCount);
+            mCenterFrequencies[i] = (int) Math.round(center * 1000);
+            mBassWeights[i] = bassWeight(center);
+        }
+
+        try {
+            mPreEq = new DynamicsProcessing.Eq(true, false, bandCount);
+            for (int i = 0; i < bandCount; i++) {
+                mPreEq.setBand(i, new DynamicsProcessing.EqBand(true, cutoffs[i], 0f));
+            }
+            mLimiter = new DynamicsProcessing.Limiter(true, true, 0, LIMITER_ATTACK_MS,
+                    LIMITER_RELEASE_MS, LIMITER_RATIO, LIMITER_THRESHOLD_DB, 0f);
+
+            final DynamicsProcessing.Config config = new DynamicsProcessing.Config.Builder(
+                    DynamicsProcessing.VARIANT_FAVOR_FREQUENCY_RESOLUTION, CHANNEL_COUNT,
+                    true, bandCount, false, 0, false, 0, true)
+                    .setPreferredFrameDuration(FRAME_DURATION_MS)
+                    .setPreEqAllChannelsTo(mPreEq)
+                    .setLimiterAllChannelsTo(mLimiter)
+                    .build();
+            mDynamics = new DynamicsProcessing(getPriority(), mSessionId, config);
+            watchControl(mDynamics);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "error creating" + this + ", releasing and throwing!");
+            release();
+            throw e;
+        }
+    }
+
+    private static float bassWeight(double center) {
+        if (center <= BASS_FULL_HZ) {
+            return 1f;
+        }
+        if (center >= BASS_CUTOFF_HZ) {
+            return 0f;
+        }
+        return (float) (Math.log(BASS_CUTOFF_HZ / center)
+                / Math.log(BASS_CUTOFF_HZ / BASS_FULL_HZ));
+    }
+
+    static boolean isSupportedBandCount(int bandCount) {
+        for (int count : SUPPORTED_BAND_COUNTS) {
+            if (count == bandCount) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void release() {
+        super.release();
+
+        try {
+            if (mDynamics != null) {
+                mDynamics.release();
+            }
+        } catch (Exception e) {
+            // ignored
+        }
+        mDynamics = null;
+    }
+
+    @Override
+    public int getBrand() {
+        return Constants.EFFECT_TYPE_DYNAMICS_PROCESSING;
+    }
+
+    @Override
+    public void setGlobalEnabled(boolean globalEnabled) {
+        super.setGlobalEnabled(globalEnabled);
+
+        try {
+            mDynamics.setEnabled(globalEnabled);
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to " + (globalEnabled ? "enable" : "disable")
+                    + " dynamics processing for sessionId=" + mSessionId, e);
+        }
+    }
+
+    @Override
+    public void setDevice(AudioDeviceInfo deviceInfo) {
+        super.setDevice(deviceInfo);
+        // the shadow was dropped, send the whole curve again
+        markBandsDirty();
+    }
+
+    @Override
+    public void invalidateShadow() {
+        super.invalidateShadow();
+        // gains aren't in the shadow register, forget them as well
+        mPreGain = Float.NaN;
+        mPostGain = Float.NaN;
+        mLevelsDirty = true;
+    }
+
+    @Override
+    public boolean commitUpdate() {
+        // make room before the bands boost, and only give it back once they are lowered
+        final boolean gainFirst = mPendingPreGainDirty && mPendingPreGain < mPreGain;
+        if (gainFirst) {
+            applyPreGain(mPendingPreGain);
+        }
+        flushBands();
+        if (mPendingPreGainDirty && !gainFirst) {
+            applyPreGain(mPendingPreGain);
+        }
+        mPendingPreGainDirty = false;
+        return super.commitUpdate();
+    }
+
+    /**
+     * Headroom goes on the input gain, ahead of the pre-EQ.
+     */
+    @Override
+    public void setPreGain(float gain) {
+        if (isUpdating()) {
+            mPendingPreGain = gain;
+            mPendingPreGainDirty = true;
+            return;
+        }
+        applyPreGain(gain);
+    }
+
+    private void applyPreGain(float gain) {
+        if (gain == mPreGain) {
+            return;
+        }
+        mPreGain = gain;
+        try {
+            mDynamics.setInputGainAllChannelsTo(gain);
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to set input gain for sessionId=" + mSessionId, e);
+        }
+    }
+
+    /**
+     * Output gain applied after the limiter.
+     *
+     * @param gain in decibels
+     */
+    public void setPostGain(float gain) {
+        if (gain == mPostGain) {
+            return;
+        }
+        mPostGain = gain;
+        try {
+            mLimiter.setPostGain(gain);
+            mDynamics.setLimiterAllChannelsTo(mLimiter);
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to set post gain for sessionId=" + mSessionId, e);
+        }
+    }
+
+    /**
+     * Volume boost is the limiter's post gain, so it can't push the output into clipping.
+     */
+    @Override
+    public boolean hasVolumeBoost() {
+        return true;
+    }
+
+    @Override
+    public void setVolumeBoost(short gain) {
+        setPostGain(gain / 100f);
+    }
+
+    /* ---- equalizer ---- */
+
+    @Override
+    public void enableEqualizer(boolean enable) {
+        mEqRequested = enable;
+        markBandsDirty();
+    }
+
+    @Override
+    public void setEqualizerLevelsDecibels(float[] levels) {
+        final int n = Math.min(levels.length, mBandCount);
+        for (int i = 0; i < n; i++) {
+            mLevels[i] = (short) (levels[i] * 100);
+        }
+        markBandsDirty();
+    }
+
+    @Override
+    public void setEqualizerLevelsMillibels(short[] levels) {
+        System.arraycopy(levels, 0, mLevels, 0, Math.min(levels.length, mBandCount));
+        markBandsDirty();
+    }
+
+    @Override
+    public void setEqualizerBandLevel(short band, float level) {
+        mLevels[band] = (short) level;
+        markBandsDirty();
+    }
+
+    @Override
+    public short getNumEqualizerBands() {
+        return (short) mBandCount;
+    }
+
+    @Override
+    public int getEqualizerBandLevel(short band) {
+        return mLevels[band];
+    }
+
+    @Override
+    public String getEqualizerPresetName(short preset) {
+        return PRESET_FLAT;
+    }
+
+    @Override
+    public void useEqualizerPreset(short preset) {
+        // the only preset is flat
+        for (int i = 0; i < mBandCount; i++) {
+            mLevels[i] = 0;
+        }
+        markBandsDirty();
+    }
+
+    @Override
+    public short getNumEqualizerPresets() {
+        return 1;
+    }
+
+    @Override
+    public short[] getEqualizerBandLevelRange() {
+        return new short[]{-LEVEL_RANGE_MB, LEVEL_RANGE_MB};
+    }
+
+    @Override
+    public int getCenterFrequency(short band) {
+        return mCenterFrequencies[band];
+    }
+
+    /* ---- bass boost, on top of the pre-EQ ---- */
+
+    @Override
+    public boolean hasBassBoost() {
+        return true;
+    }
+
+    @Override
+    public void enableBassBoost(boolean enable) {
+        mBassRequested = enable;
+        markBandsDirty();
+    }
+
+    @Override
+    public void setBassBoostStrength(short strength) {
+        mBassStrength = strength;
+        markBandsDirty();
+    }
+
+    @Override
+    public boolean hasVirtualizer() {
+        return false;
+    }
+
+    @Override
+    public void enableVirtualizer(boolean enable) {
+    }
+
+    @Override
+    public void setVirtualizerStrength(short strength) {
+    }
+
+    private void markBandsDirty() {
+        mLevelsDirty = true;
+        if (!isUpdating()) {
+            flushBands();
+        }
+    }
+
+    /**
+     * Send every band whose effective gain changed, and bypass the pre-EQ while the combined
+     * curve is flat. The stage is only switched on after its bands are up to date.
+     */
+    private void flushBands() {
+        if (!mLevelsDirty) {
+            return;
+        }
+        mLevelsDirty = false;
+
+        final float bass = mBassRequested ? mBassStrength / 1000f * BASS_MAX_DB : 0f;
+        boolean flat = true;
+        for (int i = 0; i < mBandCount; i++) {
+            if (Math.abs(Math.round(bandGain(i, bass) * 100)) > FLAT_TOLERANCE_MB) {
+                flat = false;
+                break;
+            }
+        }
+
+        if (flat) {
+            setPreEqEnabled(false);
+        }
+        for (int i = 0; i < mBandCount; i++) {
+            final float gain = bandGain(i, bass);
+            if (!shadowBandChanged(i, Math.round(gain * 100))) {
+                continue;
+            }
+            try {
+                final DynamicsProcessing.EqBand band = mPreEq.getBand(i);
+                band.setGain(gain);
+                mDynamics.setPreEqBandAllChannelsTo(i, band);
+            } catch (Exception e) {
+                Log.e(TAG, "Unable to set eq band=" + i + " gain=" + gain, e);
+                invalidateShadowBands();
+            }
+        }
+        if (!flat) {
+            setPreEqEnabled(true);
+        }
+    }
+
+    private float bandGain(int band, float bass) {
+        return (mEqRequested ? mLevels[band] / 100f : 0f) + bass * mBassWeights[band];
+    }
+
+    private void setPreEqEnabled(boolean enable) {
+        if (!shadowChanged(SHADOW_EQ_ENABLED, enable ? 1 : 0)) {
+            return;
+        }
+        try {
+            mPreEq.setEnabled(enable);
+            mDynamics.setPreEqAllChannelsTo(mPreEq);
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to " + (enable ? "enable" : "disable") + " pre-eq for sessionId="
+                    + mSessionId, e);
+            invalidateShadow(SHADOW_EQ_ENABLED);
+        }
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.backends;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.audiofx.AudioEffect;
+import android.media.audiofx.Equalizer;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * What the platform's audio effects can do: which effect types and implementations exist, the
+ * shape of the stock equalizer and how many instances of it can be alive at once.
+ * <p>
+ * Probing talks to audioserver, so the result is persisted and only probed again when the build
+ * fingerprint changes, i.e. after an OTA. A probe which failed part way, e.g. because audioserver
+ * was not up yet, is neither persisted nor cached, so the next caller probes again.
+ */
+public final class EffectCapabilities {
+
+    private static final String TAG = "AudioFx-EffectCapabilities";
+
+    private static final String FILE_NAME = "effect_capabilities.bin";
+    private static final int VERSION = 2;
+
+    /**
+     * Equalizer instances to try when probing the limit, more than any device plays at once
+     */
+    private static final int MAX_INSTANCES_PROBED = 16;
+
+    private static volatile EffectCapabilities sInstance;
+
+    private final String mFingerprint;
+    private final UUID[] mTypes;
+    private final UUID[] mUuids;
+    private final String[] mNames;
+    private final short mEqBands;
+    private final short mEqMinLevel;
+    private final short mEqMaxLevel;
+    private final int mEqMaxInstances;
+    private final boolean mComplete;
+
+    private EffectCapabilities(String fingerprint, UUID[] types, UUID[] uuids, String[] names,
+            short eqBands, short eqMinLevel, short eqMaxLevel, int eqMaxInstances,
+            boolean complete) {
+        mFingerprint = fingerprint;
+        mTypes = types;
+        mUuids = uuids;
+        mNames = names;
+        mEqBands = eqBands;
+        mEqMinLevel = eqMinLevel;
+        mEqMaxLevel = eqMaxLevel;
+        mEqMaxInstances = eqMaxInstances;
+        mComplete = complete;
+    }
+
+    /**
+     * @return the capabilities of this build, probing them if they are not known yet
+     */
+    public static EffectCapabilities get(Context context) {
+        EffectCapabilities caps = sInstance;
+        if (caps == null) {
+            synchronized (EffectCapabilities.class) {
+                caps = sInstance;
+                if (caps == null) {
+                    caps = load(context);
+                    if (caps.mComplete) {
+                        sInstance = caps;
+                    }
+                }
+            }
+        }
+        return caps;
+    }
+
+    private static EffectCapabilities load(Context context) {
+        final File file = new File(context.getNoBackupFilesDir(), FILE_NAME);
+        final EffectCapabilities cached = read(file);
+        if (cached != null && Build.FINGERPRINT.equals(cached.mFingerprint)) {
+            return cached;
+        }
+
+        Log.i(TAG, "probing effect capabilities for " + Build.FINGERPRINT);
+        final EffectCapabilities probed = probe(context);
+        if (probed.mComplete) {
+            write(file, probed);
+        } else {
+            Log.w(TAG, "incomplete probe, not persisting it");
+        }
+        return probed;
+    }
+
+    private static EffectCapabilities probe(Context context) {
+        UUID[] types = new UUID[0];
+        UUID[] uuids = new UUID[0];
+        String[] names = new String[0];
+        boolean complete = true;
+        try {
+            final AudioEffect.Descriptor[] descriptors = AudioEffect.queryEffects();
+            types = new UUID[descriptors.length];
+            uuids = new UUID[descriptors.length];
+            names = new String[descriptors.length];
+            for (int i = 0; i < descriptors.length; i++) {
+                types[i] = descriptors[i].type;
+                uuids[i] = descriptors[i].uuid;
+                names[i] = descriptors[i].name != null ? descriptors[i].name : "";
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to query effects", e);
+            complete = false;
+        }
+
+        short bands = 0;
+        short min = 0;
+        short max = 0;
+        Equalizer eq = null;
+        try {
+            eq = new Equalizer(0, 0);
+            bands = eq.getNumberOfBands();
+            final short[] range = eq.getBandLevelRange();
+            min = range[0];
+            max = range[1];
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to probe the equalizer", e);
+            complete = false;
+        } finally {
+            if (eq != null) {
+                eq.release();
+            }
+        }
+        final int instances = bands > 0 ? probeMaxInstances(context) : 0;
+        return new EffectCapabilities(Build.FINGERPRINT, types, uuids, names, bands, min, max,
+                instances, complete);
+    }
+
+    /**
+     * Create equalizers on fresh sessions until the platform refuses, all released again
+     * before returning.
+     *
+     * @return how many could be alive at once, at most {@link #MAX_INSTANCES_PROBED}
+     */
+    private static int probeMaxInstances(Context context) {
+        final AudioManager audioManager = context.getSystemService(AudioManager.class);
+        final ArrayList<Equalizer> instances = new ArrayList<>(MAX_INSTANCES_PROBED);
+        try {
+            while (instances.size() < MAX_INSTANCES_PROBED) {
+                instances.add(new Equalizer(0, audioManager.generateAudioSessionId()));
+            }
+        } catch (Exception e) {
+            Log.i(TAG, "equalizer instance limit is " + instances.size());
+        } finally {
+            for (Equalizer eq : instances) {
+                eq.release();
+            }
+        }
+        return instances.size();
+    }
+
+    private static EffectCapabilities read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            final String fingerprint = in.readUTF();
+            final int n = in.readInt();
+            final UUID[] types = new UUID[n];
+            final UUID[] uuids = new UUID[n];
+            final String[] names = new String[n];
+            for (int i = 0; i < n; i++) {
+                types[i] = new UUID(in.readLong(), in.readLong());
+                uuids[i] = new UUID(in.readLong(), in.readLong());
+                names[i] = in.readUTF();
+            }
+            return new EffectCapabilities(fingerprint, types, uuids, names,
+                    in.readShort(), in.readShort(), in.readShort(), in.readInt(), true);
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable " + file, e);
+            return null;
+        }
+    }
+
+    private static void write(File file, EffectCapabilities caps) {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(VERSION);
+            out.writeUTF(caps.mFingerprint);
+            out.writeInt(caps.mTypes.length);
+            for (int i = 0; i < caps.mTypes.length; i++) {
+                out.writeLong(caps.mTypes[i].getMostSignificantBits());
+                out.writeLong(caps.mTypes[i].getLeastSignificantBits());
+                out.writeLong(caps.mUuids[i].getMostSignificantBits());
+                out.writeLong(caps.mUuids[i].getLeastSignificantBits());
+                out.writeUTF(caps.mNames[i]);
+            }
+            out.writeShort(caps.mEqBands);
+            out.writeShort(caps.mEqMinLevel);
+            out.writeShort(caps.mEqMaxLevel);
+            out.writeInt(caps.mEqMaxInstances);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to persist " + file, e);
+        }
+    }
+
+    /**
+     * @return false if part of the probe failed, in which case the result only holds what could
+     * be read and will be probed again on the next {@link #get(Context)}
+     */
+    public boolean isComplete() {
+        return mComplete;
+    }
+
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    /**
+     * @param type one of the AudioEffect.EFFECT_TYPE_* UUIDs
+     */
+    public boolean hasEffectType(UUID type) {
+        return getImplementation(type) != null;
+    }
+
+    /**
+     * @param type one of the AudioEffect.EFFECT_TYPE_* UUIDs
+     * @return UUID of the first implementation of this type, or null if there is none
+     */
+    public UUID getImplementation(UUID type) {
+        for (int i = 0; i < mTypes.length; i++) {
+            if (mTypes[i].equals(type)) {
+                return mUuids[i];
+            }
+        }
+        return null;
+    }
+
+    public int getNumEffects() {
+        return mTypes.length;
+    }
+
+    /**
+     * @return number of bands of the stock equalizer, 0 if it could not be probed
+     */
+    public short getEqualizerBands() {
+        return mEqBands;
+    }
+
+    /**
+     * @return how many stock equalizers can be alive at once, 0 if it could not be probed. A
+     * limit that was not reached while probing is reported as {@link #MAX_INSTANCES_PROBED}.
+     */
+    public int getMaxEqualizerInstances() {
+        return mEqMaxInstances;
+    }
+
+    /**
+     * @return band level range of the stock equalizer in millibels, {min, max}
+     */
+    public short[] getEqualizerBandLevelRange() {
+        return new short[]{mEqMinLevel, mEqMaxLevel};
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("EffectCapabilities [ ")
+                .append(mFingerprint)
+                .append(mComplete ? "" : " (incomplete)")
+                .append(" eq: ").append(mEqBands).append(" bands ")
+                .append(mEqMinLevel).append("..").append(mEqMaxLevel).append("mB")
+                .append(" max ").append(mEqMaxInstances).append(" instances");
+        for (int i = 0; i < mTypes.length; i++) {
+            sb.append(" ").append(mNames[i]).append("=").append(mUuids[i]);
+        }
+        return sb.append(" ]").toString();
+    }
+}
@@ -7,8 +7,12 @@
 package org.lineageos.audiofx.backends;
 
 import android.media.AudioDeviceInfo;
+import android.media.audiofx.AudioEffect;
 import android.util.Log;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Helper class representing the full complement of effects attached to one audio session.
  */
@@ -16,17 +20,77 @@ public abstract class EffectSet {
 
     protected static final String TAG = "AudioFx-EffectSet";
 
+    /**
+     * Slots in the shadow register, which remembers the last value sent to the backend for each
+     * parameter so that redundant writes can be dropped. Equalizer bands are tracked separately.
+     */
+    protected static final int SHADOW_EQ_ENABLED = 0;
+    protected static final int SHADOW_BASS_ENABLED = 1;
+    protected static final int SHADOW_BASS_STRENGTH = 2;
+    protected static final int SHADOW_VIRTUALIZER_ENABLED = 3;
+    protected static final int SHADOW_VIRTUALIZER_STRENGTH = 4;
+    protected static final int SHADOW_REVERB_ENABLED = 5;
+    protected static final int SHADOW_REVERB_PRESET = 6;
+    protected static final int SHADOW_PRE_GAIN_ENABLED = 7;
+    protected static final int SHADOW_PRE_GAIN = 8;
+    protected static final int SHADOW_VOLUME_BOOST_ENABLED = 9;
+    protected static final int SHADOW_VOLUME_BOOST = 10;
+    private static final int SHADOW_SLOTS = 11;
+
+    private static final int SHADOW_UNKNOWN = Integer.MIN_VALUE;
+
+    /**
+     * Pseudo-slot for {@link #watchControl(AudioEffect, int...)} standing for the equalizer
+     * band levels
+     */
+    protected static final int SHADOW_BANDS = 31;
+    private static final int LOST_ALL = -1;
+
+    /**
+     * Band levels within this many millibels of zero are considered flat
+     */
+    protected static final int FLAT_TOLERANCE_MB = 10;
+
     protected final int mSessionId;
 
     protected boolean mGlobalEnabled;
 
     private AudioDeviceInfo mDeviceInfo;
 
-    private boolean mMarkedForDeath = false;
+    private boolean mUpdating = false;
+
+    private final int[] mShadow = new int[SHADOW_SLOTS];
+    private int[] mShadowBands;
+
+    private long mWritesSent = 0;
+    private long mWritesSuppressed = 0;
+
+    private static volatile int sPriority = 100;
+
+    /**
+     * Shadow slots whose effect was taken over by someone else, as a bit mask. Written from
+     * the effect callbacks, consumed by {@link #restoreControl()}.
+     */
+    private final AtomicInteger mLostSlots = new AtomicInteger();
+    private volatile ControlListener mControlListener;
+    private final AtomicInteger mControlLost = new AtomicInteger();
+    private final AtomicInteger mControlRegained = new AtomicInteger();
+
+    /**
+     * Notified when effects of this set may need to be sent their parameters again.
+     */
+    public interface ControlListener {
+        /**
+         * Called on whichever thread delivers effect events, after another client released
+         * control of one of our effects or changed its enabled state.
+         */
+        void onControlRegained(EffectSet effects);
+    }
 
     public EffectSet(int sessionId, AudioDeviceInfo deviceInfo) {
         mSessionId = sessionId;
         mDeviceInfo = deviceInfo;
+        Arrays.fill(mShadow, SHADOW_UNKNOWN);
         try {
             onCreate();
         } catch (Exception e) {
@@ -54,6 +118,102 @@ public abstract class EffectSet {
     public void release() {
     }
 
+    /**
+     * Priority requested for new effects. Higher values win control over other clients
+     * attaching effects to the same session.
+     */
+    public static void setPriority(int priority) {
+        sPriority = priority;
+    }
+
+    protected static int getPriority() {
+        return sPriority;
+    }
+
+    public int getSessionId() {
+        return mSessionId;
+    }
+
+    public void setControlListener(ControlListener listener) {
+        mControlListener = listener;
+    }
+
+    /**
+     * Track control of an effect. While another client holds control our writes are ignored,
+     * so once control comes back (or someone toggles the effect behind our back) the given
+     * shadow slots are marked lost and the listener is told to re-apply.
+     *
+     * @param slots shadow slots written through this effect, none for all of them
+     */
+    protected void watchControl(AudioEffect effect, int... slots) {
+        int mask = 0;
+        for (int slot : slots) {
+            mask |= 1 << slot;
+        }
+        final int lost = slots.length == 0 ? LOST_ALL : mask;
+        try {
+            effect.setControlStatusListener((e, controlGranted) -> {
+                if (!controlGranted) {
+                    mControlLost.incrementAndGet();
+                    return;
+                }
+                mControlRegained.incrementAndGet();
+                onControlLost(lost);
+            });
+            effect.setEnableStatusListener((e, enabled) -> onControlLost(lost));
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to watch control of " + effect, e);
+        }
+    }
+
+    private void onControlLost(int slots) {
+        mLostSlots.accumulateAndGet(slots, (a, b) -> a | b);
+        final ControlListener listener = mControlListener;
+        if (listener != null) {
+            listener.onControlRegained(this);
+        }
+    }
+
+    /**
+     * Drop the shadow of every effect which was taken over since the last call, so that the
+     * next update sends their parameters again while everything else is still suppressed.
+     *
+     * @return true if anything needs to be re-applied
+     */
+    public boolean restoreControl() {
+        final int lost = mLostSlots.getAndSet(0);
+        if (lost == 0) {
+            return false;
+        }
+        if (lost == LOST_ALL) {
+            invalidateShadow();
+            return true;
+        }
+        for (int slot = 0; slot < SHADOW_SLOTS; slot++) {
+            if ((lost & (1 << slot)) != 0) {
+                invalidateShadow(slot);
+            }
+        }
+        if ((lost & (1 << SHADOW_BANDS)) != 0) {
+            invalidateShadowBands();
+        }
+        return true;
+    }
+
+    /**
+     * @return how often another client took control of one of our effects
+     */
+    public int getControlLostCount() {
+        return mControlLost.get();
+    }
+
+    /**
+     * @return how often control of one of our effects came back
+     */
+    public int getControlRegainedCount() {
+        return mControlRegained.get();
+    }
+
     /**
      * Returns the enumerated brand of this implementation
      *
@@ -69,11 +229,16 @@ public abstract class EffectSet {
         mGlobalEnabled = globalEnabled;
     }
 
+    public boolean isGlobalEnabled() {
+        return mGlobalEnabled;
+    }
+
     /**
      * Called when the output device has changed. All cached data should be cleared at this point.
      */
     public void setDevice(AudioDeviceInfo deviceInfo) {
         mDeviceInfo = deviceInfo;
+        invalidateShadow();
     }
 
     /**
@@ -95,6 +260,7 @@ public abstract class EffectSet {
      * @return status - false on failure
      */
     public boolean beginUpdate() {
+        mUpdating = true;
         return true;
     }
 
@@ -110,9 +276,136 @@ public abstract class EffectSet {
      * @return status - false on failure
      */
     public boolean commitUpdate() {
+        mUpdating = false;
         return true;
     }
 
+    /**
+     * @return true if we are between beginUpdate() and commitUpdate(), and parameter changes
+     * should be staged instead of being sent to the backend immediately.
+     */
+    protected boolean isUpdating() {
+        return mUpdating;
+    }
+
+    /**
+     * Forget everything we think the backend currently holds, so that the next update sends
+     * every parameter again. Call this whenever the backend state may have been changed behind
+     * our back (device switch, audioserver restart, loss of effect control).
+     */
+    public void invalidateShadow() {
+        Arrays.fill(mShadow, SHADOW_UNKNOWN);
+        if (mShadowBands != null) {
+            Arrays.fill(mShadowBands, SHADOW_UNKNOWN);
+        }
+    }
+
+    /**
+     * Forget the last value sent for a single parameter, for example after a failed write.
+     */
+    protected void invalidateShadow(int slot) {
+        mShadow[slot] = SHADOW_UNKNOWN;
+    }
+
+    /**
+     * Check a pending write against the shadow register and record it.
+     *
+     * @return true if the value differs from what the backend holds and must be sent
+     */
+    protected boolean shadowChanged(int slot, int value) {
+        if (mShadow[slot] == value) {
+            mWritesSuppressed++;
+            return false;
+        }
+        mShadow[slot] = value;
+        mWritesSent++;
+        return true;
+    }
+
+    /**
+     * Compare a full set of equalizer band levels against the shadow register and record them.
+     * A changed vector is accounted as a single write, since it goes out in one call.
+     *
+     * @param levels in millibels
+     * @return true if any band differs and the levels must be sent
+     */
+    protected boolean shadowBandsChanged(short[] levels) {
+        final int[] shadow = getShadowBands(levels.length);
+        boolean changed = false;
+        for (int i = 0; i < levels.length; i++) {
+            if (shadow[i] != levels[i]) {
+                shadow[i] = levels[i];
+                changed = true;
+            }
+        }
+        if (changed) {
+            mWritesSent++;
+        } else {
+            mWritesSuppressed++;
+        }
+        return changed;
+    }
+
+    /**
+     * Single band variant of {@link #shadowBandsChanged(short[])}.
+     */
+    protected boolean shadowBandChanged(int band, int level) {
+        final int[] shadow = getShadowBands(getNumEqualizerBands());
+        if (shadow[band] == level) {
+            mWritesSuppressed++;
+            return false;
+        }
+        shadow[band] = level;
+        mWritesSent++;
+        return true;
+    }
+
+    protected void invalidateShadowBands() {
+        if (mShadowBands != null) {
+            Arrays.fill(mShadowBands, SHADOW_UNKNOWN);
+        }
+    }
+
+    private int[] getShadowBands(int numBands) {
+        if (mShadowBands == null || mShadowBands.length < numBands) {
+            mShadowBands = new int[numBands];
+            Arrays.fill(mShadowBands, SHADOW_UNKNOWN);
+        }
+        return mShadowBands;
+    }
+
+    /**
+     * @param levels in millibels, may be null if no levels have been set yet
+     * @return true if the curve is flat within {@link #FLAT_TOLERANCE_MB} and an equalizer
+     * would not change the signal, so it can be bypassed
+     */
+    protected static boolean isFlat(short[] levels) {
+        if (levels == null) {
+            return false;
+        }
+        for (short level : levels) {
+            if (Math.abs(level) > FLAT_TOLERANCE_MB) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of parameter writes which were sent to the backend
+     */
+    public long getWritesSent() {
+        return mWritesSent;
+    }
+
+    /**
+     * @return number of parameter writes which were dropped because the backend already held
+     * the requested value
+     */
+    public long getWritesSuppressed() {
+        return mWritesSuppressed;
+    }
+
     /* ---- Top level effects begin here ---- */
 
     // required effects
@@ -125,6 +418,10 @@ public abstract class EffectSet {
         return false;
     }
 
+    public boolean hasVolumeBoost() {
+        return false;
+    }
+
     public abstract void enableEqualizer(boolean enable);
 
     /**
@@ -132,6 +429,15 @@ public abstract class EffectSet {
      */
     public abstract void setEqualizerLevelsDecibels(float[] levels);
 
+    /**
+     * @param levels in millibels
+     */
+    public void setEqualizerLevelsMillibels(short[] levels) {
+        for (short i = 0; i < levels.length; i++) {
+            setEqualizerBandLevel(i, levels[i]);
+        }
+    }
+
     public abstract short getNumEqualizerBands();
 
     /**
@@ -174,6 +480,24 @@ public abstract class EffectSet {
     public void enableReverb(boolean enable) {
     }
 
+    /**
+     * Loudness enhancement. A gain of zero turns it off.
+     *
+     * @param gain target gain in millibels
+     */
+    public void setVolumeBoost(short gain) {
+    }
+
+    /**
+     * Gain applied to the whole signal to leave headroom for equalizer boosts.
+     * <p>
+     * Optional.
+     *
+     * @param gain in decibels, zero or negative
+     */
+    public void setPreGain(float gain) {
+    }
+
     public void setReverbPreset(short preset) {
     }
 
@@ -185,12 +509,17 @@ public abstract class EffectSet {
         return 0;
     }
 
-    public boolean isMarkedForDeath() {
-        return mMarkedForDeath;
-    }
-
-    public void setMarkedForDeath(boolean die) {
-        mMarkedForDeath = die;
+    /**
+     * Release individual effects which have been disabled for at least idleMs. Implementations
+     * which support this create them again once they get enabled.
+     * <p>
+     * Optional.
+     *
+     * @return milliseconds until the next disabled effect may be released, or -1 if there is
+     * nothing left to release
+     */
+    public long trimIdleEffects(long idleMs) {
+        return -1;
     }
 
     @Override
@@ -200,6 +529,10 @@ public abstract class EffectSet {
                 + " mSessionId: " + mSessionId
                 + " mDeviceInfo: " + mDeviceInfo
                 + " mGlobalEnabled: " + mGlobalEnabled
+                + " mWritesSent: " + mWritesSent
+                + " mWritesSuppressed: " + mWritesSuppressed
+                + " mControlLost: " + mControlLost.get()
+                + " mControlRegained: " + mControlRegained.get()
                 + " ]";
     }
 }
@@ -0,0 +1,259 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.backends;
+
+import android.content.Context;
+import android.media.audiofx.AudioEffect;
+import android.os.Build;
+import android.util.Log;
+
+import org.lineageos.audiofx.Constants;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * The static shape of the EffectSets this device creates: equalizer bands, range and presets,
+ * and which of the other effects exist.
+ * <p>
+ * Reading this from a live EffectSet walks every preset band by band, which is dozens of
+ * audioserver calls. The result only changes with the platform, so it is stored keyed by build
+ * fingerprint, backend brand and equalizer implementation UUID, and only probed again when
+ * one of those changes. A probe made from incomplete capabilities or one that came back without
+ * any equalizer bands is used but neither stored nor cached.
+ */
+public final class EffectSetDescriptor {
+
+    private static final String TAG = "AudioFx-EffectSetDescriptor";
+
+    private static final String FILE_NAME = "effectset_descriptor.bin";
+    private static final int VERSION = 1;
+
+    private static volatile EffectSetDescriptor sInstance;
+
+    private String mFingerprint;
+    private int mBrand;
+    private UUID mEqUuid;
+
+    private short[] mBandLevelRange;
+    private int[] mCenterFreqs;
+    private String[] mPresetNames;
+    private int[][] mPresetLevels;
+    private boolean mHasVirtualizer;
+    private boolean mHasReverb;
+    private boolean mHasBassBoost;
+
+    // not persisted, only complete descriptors ever are
+    private boolean mComplete = true;
+
+    private EffectSetDescriptor() {
+    }
+
+    /**
+     * @return the descriptor for this build, probing a temporary EffectSet if it is not known
+     */
+    public static EffectSetDescriptor get(Context context) {
+        EffectSetDescriptor desc = sInstance;
+        if (desc == null) {
+            synchronized (EffectSetDescriptor.class) {
+                desc = sInstance;
+                if (desc == null) {
+                    desc = load(context);
+                    if (desc.mComplete) {
+                        sInstance = desc;
+                    }
+                }
+            }
+        }
+        return desc;
+    }
+
+    private static EffectSetDescriptor load(Context context) {
+        final EffectCapabilities caps = EffectCapabilities.get(context);
+        final int brand = EffectsFactory.getBrand(context);
+        final UUID eqUuid = getEqualizerUuid(caps, brand);
+        final File file = new File(context.getNoBackupFilesDir(), FILE_NAME);
+
+        final EffectSetDescriptor cached = read(file);
+        if (cached != null && Build.FINGERPRINT.equals(cached.mFingerprint)
+                && cached.mBrand == brand && Objects.equals(cached.mEqUuid, eqUuid)) {
+            return cached;
+        }
+
+        Log.i(TAG, "probing effects for brand " + brand + " (" + eqUuid + ")");
+        final EffectSetDescriptor probed = probe(context);
+        probed.mFingerprint = Build.FINGERPRINT;
+        probed.mBrand = brand;
+        probed.mEqUuid = eqUuid;
+        probed.mComplete = caps.isComplete() && probed.mCenterFreqs.length > 0;
+        if (probed.mComplete) {
+            write(file, probed);
+        } else {
+            Log.w(TAG, "incomplete probe, not persisting it");
+        }
+        return probed;
+    }
+
+    private static UUID getEqualizerUuid(EffectCapabilities caps, int brand) {
+        final UUID type = brand == Constants.EFFECT_TYPE_DYNAMICS_PROCESSING
+                ? AudioEffect.EFFECT_TYPE_DYNAMICS_PROCESSING
+                : AudioEffect.EFFECT_TYPE_EQUALIZER;
+        return caps.getImplementation(type);
+    }
+
+    private static EffectSetDescriptor probe(Context context) {
+        final EffectSetDescriptor desc = new EffectSetDescriptor();
+        final EffectSet temp = new EffectsFactory().createEffectSet(context, 0, null);
+        try {
+            final short numBands = temp.getNumEqualizerBands();
+            final short numPresets = temp.getNumEqualizerPresets();
+
+            desc.mBandLevelRange = temp.getEqualizerBandLevelRange();
+            desc.mCenterFreqs = new int[numBands];
+            for (short i = 0; i < numBands; i++) {
+                desc.mCenterFreqs[i] = temp.getCenterFrequency(i);
+            }
+
+            desc.mPresetNames = new String[numPresets];
+            desc.mPresetLevels = new int[numPresets][numBands];
+            for (short i = 0; i < numPresets; i++) {
+                desc.mPresetNames[i] = temp.getEqualizerPresetName(i);
+                temp.useEqualizerPreset(i);
+                for (short j = 0; j < numBands; j++) {
+                    desc.mPresetLevels[i][j] = temp.getEqualizerBandLevel(j);
+                }
+            }
+
+            desc.mHasVirtualizer = temp.hasVirtualizer();
+            desc.mHasReverb = temp.hasReverb();
+            desc.mHasBassBoost = temp.hasBassBoost();
+        } finally {
+            temp.release();
+        }
+        return desc;
+    }
+
+    private static EffectSetDescriptor read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            final EffectSetDescriptor desc = new EffectSetDescriptor();
+            desc.mFingerprint = in.readUTF();
+            desc.mBrand = in.readInt();
+            desc.mEqUuid = in.readBoolean() ? new UUID(in.readLong(), in.readLong()) : null;
+
+            desc.mBandLevelRange = new short[]{in.readShort(), in.readShort()};
+            final int numBands = in.readShort();
+            desc.mCenterFreqs = new int[numBands];
+            for (int i = 0; i < numBands; i++) {
+                desc.mCenterFreqs[i] = in.readInt();
+            }
+            final int numPresets = in.readShort();
+            desc.mPresetNames = new String[numPresets];
+            desc.mPresetLevels = new int[numPresets][numBands];
+            for (int i = 0; i < numPresets; i++) {
+                desc.mPresetNames[i] = in.readUTF();
+                for (int j = 0; j < numBands; j++) {
+                    desc.mPresetLevels[i][j] = in.readShort();
+                }
+            }
+            desc.mHasVirtualizer = in.readBoolean();
+            desc.mHasReverb = in.readBoolean();
+            desc.mHasBassBoost = in.readBoolean();
+            return desc;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable " + file, e);
+            return null;
+        }
+    }
+
+    private static void write(File file, EffectSetDescriptor desc) {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file))) {
+            out.writeInt(VERSION);
+            out.writeUTF(desc.mFingerprint);
+            out.writeInt(desc.mBrand);
+            out.writeBoolean(desc.mEqUuid != null);
+            if (desc.mEqUuid != null) {
+                out.writeLong(desc.mEqUuid.getMostSignificantBits());
+                out.writeLong(desc.mEqUuid.getLeastSignificantBits());
+            }
+
+            out.writeShort(desc.mBandLevelRange[0]);
+            out.writeShort(desc.mBandLevelRange[1]);
+            out.writeShort(desc.mCenterFreqs.length);
+            for (int freq : desc.mCenterFreqs) {
+                out.writeInt(freq);
+            }
+            out.writeShort(desc.mPresetNames.length);
+            for (int i = 0; i < desc.mPresetNames.length; i++) {
+                out.writeUTF(desc.mPresetNames[i]);
+                for (int level : desc.mPresetLevels[i]) {
+                    out.writeShort(level);
+                }
+            }
+            out.writeBoolean(desc.mHasVirtualizer);
+            out.writeBoolean(desc.mHasReverb);
+            out.writeBoolean(desc.mHasBassBoost);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to persist " + file, e);
+        }
+    }
+
+    public short getNumEqualizerBands() {
+        return (short) mCenterFreqs.length;
+    }
+
+    public short getNumEqualizerPresets() {
+        return (short) mPresetNames.length;
+    }
+
+    /**
+     * @return band level range in millibels, {min, max}
+     */
+    public short[] getEqualizerBandLevelRange() {
+        return mBandLevelRange.clone();
+    }
+
+    /**
+     * @return center frequency of the band in milliHertz
+     */
+    public int getCenterFrequency(short band) {
+        return mCenterFreqs[band];
+    }
+
+    public String getEqualizerPresetName(short preset) {
+        return mPresetNames[preset];
+    }
+
+    /**
+     * @return level of the band in millibels when the preset is in use
+     */
+    public int getEqualizerPresetBandLevel(short preset, short band) {
+        return mPresetLevels[preset][band];
+    }
+
+    public boolean hasVirtualizer() {
+        return mHasVirtualizer;
+    }
+
+    public boolean hasReverb() {
+        return mHasReverb;
+    }
+
+    public boolean hasBassBoost() {
+        return mHasBassBoost;
+    }
+}
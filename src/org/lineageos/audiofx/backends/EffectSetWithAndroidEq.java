@@ -7,11 +7,10 @@
 package org.lineageos.audiofx.backends;
 
 import android.media.AudioDeviceInfo;
+import android.media.audiofx.AudioEffect;
 import android.media.audiofx.Equalizer;
 import android.util.Log;
 
-import org.lineageos.audiofx.eq.EqUtils;
-
 public abstract class EffectSetWithAndroidEq extends EffectSet {
     /**
      * Session-specific equalizer
@@ -21,13 +20,34 @@ public abstract class EffectSetWithAndroidEq extends EffectSet {
     private short mEqNumPresets = -1;
     private short mEqNumBands = -1;
 
+    /**
+     * Band levels (in millibels) staged until the next flush, and a reusable
+     * settings object to send them with in a single call.
+     */
+    private short[] mPendingLevels;
+    private boolean mPendingLevelsDirty;
+    private Equalizer.Settings mEqSettings;
+
+    // some vendor equalizers don't implement PARAM_PROPERTIES, fall back to per-band writes
+    private boolean mEqPropertiesUnsupported = false;
+
+    private boolean mPendingEqEnabled;
+    private boolean mPendingEqEnabledDirty;
+
+    /**
+     * What the caller asked for. The equalizer is only actually enabled while the curve is not
+     * flat, see {@link #updateEqualizerEnabled()}.
+     */
+    private boolean mEqRequested;
+
     public EffectSetWithAndroidEq(int sessionId, AudioDeviceInfo deviceInfo) {
         super(sessionId, deviceInfo);
     }
 
     @Override
     protected void onCreate() {
-        mEqualizer = new Equalizer(100, mSessionId);
+        mEqualizer = new Equalizer(getPriority(), mSessionId);
+        watchControl(mEqualizer, SHADOW_EQ_ENABLED, SHADOW_BANDS);
         super.onCreate();
 
     }
@@ -48,20 +68,51 @@ public abstract class EffectSetWithAndroidEq extends EffectSet {
         enableEqualizer(globalEnabled);
     }
 
+    @Override
+    public boolean commitUpdate() {
+        // levels go out before the enable flag so we never turn on with a stale curve
+        flushBandLevels();
+        if (mPendingEqEnabledDirty) {
+            mPendingEqEnabledDirty = false;
+            mEqRequested = mPendingEqEnabled;
+        }
+        updateEqualizerEnabled();
+        return super.commitUpdate();
+    }
+
     @Override
     public void enableEqualizer(boolean enable) {
-        try {
-            mEqualizer.setEnabled(enable);
-        } catch (Exception e) {
-            Log.e(TAG, "enableEqualizer failed! enable=" + enable + " sessionId=" + mSessionId, e);
+        if (isUpdating()) {
+            mPendingEqEnabled = enable;
+            mPendingEqEnabledDirty = true;
+            return;
         }
+        mEqRequested = enable;
+        updateEqualizerEnabled();
     }
 
     @Override
     public void setEqualizerLevelsDecibels(float[] levels) {
-        final short[] equalizerLevels = EqUtils.convertDecibelsToMillibelsInShorts(levels);
-        for (short i = 0; i < equalizerLevels.length; i++) {
-            setBandLevelSafe(i, equalizerLevels[i]);
+        final short[] pending = getPendingLevels();
+        final int n = Math.min(levels.length, pending.length);
+        for (int i = 0; i < n; i++) {
+            pending[i] = (short) (levels[i] * 100);
+        }
+        mPendingLevelsDirty = true;
+        if (!isUpdating()) {
+            flushBandLevels();
+            updateEqualizerEnabled();
+        }
+    }
+
+    @Override
+    public void setEqualizerLevelsMillibels(short[] levels) {
+        final short[] pending = getPendingLevels();
+        System.arraycopy(levels, 0, pending, 0, Math.min(levels.length, pending.length));
+        mPendingLevelsDirty = true;
+        if (!isUpdating()) {
+            flushBandLevels();
+            updateEqualizerEnabled();
         }
     }
 
@@ -75,7 +126,15 @@ public abstract class EffectSetWithAndroidEq extends EffectSet {
 
     @Override
     public void setEqualizerBandLevel(short band, float level) {
-        setBandLevelSafe(band, (short) level);
+        getPendingLevels()[band] = (short) level;
+        if (isUpdating()) {
+            mPendingLevelsDirty = true;
+            return;
+        }
+        if (shadowBandChanged(band, (short) level)) {
+            setBandLevelSafe(band, (short) level);
+        }
+        updateEqualizerEnabled();
     }
 
     @Override
@@ -116,11 +175,84 @@ public abstract class EffectSetWithAndroidEq extends EffectSet {
         super.setDevice(deviceInfo);
     }
 
+    private short[] getPendingLevels() {
+        if (mPendingLevels == null) {
+            mPendingLevels = new short[getNumEqualizerBands()];
+        }
+        return mPendingLevels;
+    }
+
+    /**
+     * Send all staged band levels to the equalizer with a single setProperties() call.
+     */
+    private synchronized void flushBandLevels() {
+        if (!mPendingLevelsDirty) {
+            return;
+        }
+        mPendingLevelsDirty = false;
+
+        if (!shadowBandsChanged(mPendingLevels)) {
+            return;
+        }
+
+        if (!mEqPropertiesUnsupported) {
+            try {
+                if (mEqSettings == null) {
+                    mEqSettings = new Equalizer.Settings();
+                    mEqSettings.curPreset = -1; // custom levels, not a library preset
+                    mEqSettings.numBands = getNumEqualizerBands();
+                    mEqSettings.bandLevels = mPendingLevels;
+                }
+                mEqualizer.setProperties(mEqSettings);
+                return;
+            } catch (UnsupportedOperationException | IllegalArgumentException e) {
+                Log.w(TAG, "setProperties() not supported by equalizer, using per-band writes");
+                mEqPropertiesUnsupported = true;
+            } catch (Exception e) {
+                Log.e(TAG, "Unable to set eq levels for sessionId=" + mSessionId, e);
+                invalidateShadowBands();
+                return;
+            }
+        }
+
+        for (short i = 0; i < mPendingLevels.length; i++) {
+            setBandLevelSafe(i, mPendingLevels[i]);
+        }
+    }
+
+    /**
+     * Bypass the equalizer while the curve is flat, it would only burn cycles. Levels are always
+     * flushed before this is called, so it never comes back on with a stale curve.
+     * <p>
+     * The switch is not ramped: the platform equalizer applies new levels and its enable state
+     * on the next buffer, so leaving or entering bypass with audible gain on the curve may click.
+     * Only a curve within {@link #FLAT_TOLERANCE_MB} of flat is bypassed, which keeps the step
+     * below 0.1 dB and inaudible in practice.
+     */
+    private void updateEqualizerEnabled() {
+        setEqualizerEnabledSafe(mEqRequested && !isFlat(mPendingLevels));
+    }
+
+    private void setEqualizerEnabledSafe(boolean enable) {
+        if (!shadowChanged(SHADOW_EQ_ENABLED, enable ? 1 : 0)) {
+            return;
+        }
+        try {
+            if (mEqualizer.setEnabled(enable) != AudioEffect.SUCCESS) {
+                invalidateShadow(SHADOW_EQ_ENABLED);
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "enableEqualizer failed! enable=" + enable + " sessionId=" + mSessionId, e);
+            invalidateShadow(SHADOW_EQ_ENABLED);
+        }
+    }
+
     private synchronized void setBandLevelSafe(short band, short level) {
         try {
             mEqualizer.setBandLevel(band, level);
         } catch (Exception e) {
             Log.e(TAG, "Unable to set eq band=" + band + " level=" + level, e);
+            invalidateShadowBands();
         }
     }
 }
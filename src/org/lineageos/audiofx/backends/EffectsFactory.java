@@ -8,34 +8,141 @@ package org.lineageos.audiofx.backends;
 
 import android.content.Context;
 import android.media.AudioDeviceInfo;
+import android.media.audiofx.AudioEffect;
+import android.util.Log;
 
 import org.lineageos.audiofx.Constants;
+import org.lineageos.audiofx.R;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Creates an EffectSet appropriate for the current device
+ * <p>
+ * Backends are registered as {@link IEffectFactory} providers. The most recently registered
+ * provider that supports the device's {@link EffectCapabilities} wins, and the rest are kept in
+ * order as fallbacks in case creating effects fails at runtime. Stock android effects are always
+ * registered first, so there is always something to fall back to.
  */
 public class EffectsFactory implements IEffectFactory {
 
     private static final String TAG = "AudioFx-EffectsFactory";
 
-    private static int sBrand = -1; // cached value to not hit io every time we need a new effect
+    private static final ArrayList<Provider> sProviders = new ArrayList<>();
+
+    // cached selection to not hit io every time we need a new effect
+    private static List<Provider> sSupported;
+
+    static {
+        register(Constants.EFFECT_TYPE_ANDROID, new AndroidEffectsFactory());
+        register(Constants.EFFECT_TYPE_DYNAMICS_PROCESSING, new DynamicsProcessingFactory());
+    }
+
+    private static final class Provider {
+        final int mBrand;
+        final IEffectFactory mFactory;
+
+        Provider(int brand, IEffectFactory factory) {
+            mBrand = brand;
+            mFactory = factory;
+        }
+    }
+
+    /**
+     * Register an effect backend. Providers registered later take precedence over earlier ones.
+     * Must be called before the first EffectSet is created.
+     *
+     * @param brand   brand reported by the EffectSets this factory creates
+     * @param factory the factory
+     */
+    public static synchronized void register(int brand, IEffectFactory factory) {
+        sProviders.add(0, new Provider(brand, factory));
+        sSupported = null;
+    }
+
+    private static synchronized List<Provider> getSupported(Context context) {
+        List<Provider> selected = sSupported;
+        if (selected == null) {
+            EffectSet.setPriority(
+                    context.getResources().getInteger(R.integer.config_effectPriority));
+
+            final EffectCapabilities caps = EffectCapabilities.get(context);
+            final ArrayList<Provider> supported = new ArrayList<>();
+            for (Provider provider : sProviders) {
+                try {
+                    if (provider.mFactory.isSupported(context, caps)) {
+                        supported.add(provider);
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Error checking support for brand " + provider.mBrand, e);
+                }
+            }
+            selected = supported;
+            // an incomplete probe may have ruled out a backend which is there after all,
+            // select again next time rather than sticking with the fallback
+            if (caps.isComplete()) {
+                sSupported = supported;
+            }
+        }
+        return selected;
+    }
 
     public EffectSet createEffectSet(Context context, int sessionId,
             AudioDeviceInfo currentDevice) {
-        // if this throws, we're screwed, don't bother to recover. these
-        // are the standard effects that every android device must have,
+        final List<Provider> providers = getSupported(context);
+        for (int i = 0; i < providers.size() - 1; i++) {
+            final Provider provider = providers.get(i);
+            try {
+                return provider.mFactory.createEffectSet(context, sessionId, currentDevice);
+            } catch (Exception e) {
+                Log.e(TAG, "couldn't create brand " + provider.mBrand + " effects for session "
+                        + sessionId + ", falling back", e);
+            }
+        }
+
+        // if this throws, we're screwed, don't bother to recover. the last resort are
+        // the standard effects that every android device must have,
         // and if they don't exist we have bigger problems.
-        return new AndroidEffects(sessionId, currentDevice);
+        return providers.get(providers.size() - 1).mFactory
+                .createEffectSet(context, sessionId, currentDevice);
+    }
+
+    public static int getBrand(Context context) {
+        return getSupported(context).get(0).mBrand;
     }
 
-    public static int getBrand() {
-        if (sBrand == -1) {
-            sBrand = getBrandInternal();
+    private static final class AndroidEffectsFactory implements IEffectFactory {
+        @Override
+        public EffectSet createEffectSet(Context context, int sessionId,
+                AudioDeviceInfo currentDevice) {
+            return new AndroidEffects(sessionId, currentDevice);
         }
-        return sBrand;
     }
 
-    private static int getBrandInternal() {
-        return Constants.EFFECT_TYPE_ANDROID;
+    private static final class DynamicsProcessingFactory implements IEffectFactory {
+        @Override
+        public EffectSet createEffectSet(Context context, int sessionId,
+                AudioDeviceInfo currentDevice) {
+            return new DynamicsProcessingEffects(sessionId, currentDevice,
+                    getDynamicsProcessingBandCount(context));
+        }
+
+        @Override
+        public boolean isSupported(Context context, EffectCapabilities caps) {
+            return context.getResources().getBoolean(R.bool.config_useDynamicsProcessing)
+                    && caps.hasEffectType(AudioEffect.EFFECT_TYPE_DYNAMICS_PROCESSING);
+        }
+    }
+
+    private static int getDynamicsProcessingBandCount(Context context) {
+        final int bands = context.getResources().getInteger(
+                R.integer.config_dynamicsProcessingBands);
+        if (!DynamicsProcessingEffects.isSupportedBandCount(bands)) {
+            Log.w(TAG, "unsupported dynamics processing band count " + bands + ", using "
+                    + DynamicsProcessingEffects.DEFAULT_BAND_COUNT);
+            return DynamicsProcessingEffects.DEFAULT_BAND_COUNT;
+        }
+        return bands;
     }
 }
@@ -9,7 +9,7 @@ package org.lineageos.audiofx.backends;
 import android.content.Context;
 import android.media.AudioDeviceInfo;
 
-interface IEffectFactory {
+public interface IEffectFactory {
 
     /**
      * Create a new EffectSet based on current stream parameters.
@@ -20,4 +20,15 @@ interface IEffectFactory {
      * @return an {@link EffectSet}
      */
     EffectSet createEffectSet(Context context, int sessionId, AudioDeviceInfo currentDevice);
+
+    /**
+     * Whether this factory can create effects on this device.
+     *
+     * @param context context to read configuration from
+     * @param caps    probed capabilities of the platform's effects
+     * @return true if {@link #createEffectSet} is expected to succeed
+     */
+    default boolean isSupported(Context context, EffectCapabilities caps) {
+        return true;
+    }
 }
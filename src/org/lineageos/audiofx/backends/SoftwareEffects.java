@@ -0,0 +1,198 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.backends;
+
+import android.media.AudioDeviceInfo;
+
+import org.lineageos.audiofx.Constants;
+
+/**
+ * EffectSet backed by {@link SoftwareEqualizer} instead of audioserver effects.
+ * <p>
+ * It is never picked by {@link EffectsFactory}. It exists so that the EQ pipeline can run and be
+ * profiled without a device, and as a reference for what a given set of band levels should
+ * sound like: push PCM through {@link #getEqualizer()} and compare.
+ */
+public class SoftwareEffects extends EffectSet {
+
+    /**
+     * The centers the stock Android equalizer uses, in millihertz
+     */
+    public static final int[] DEFAULT_CENTER_FREQUENCIES = {
+            60000, 230000, 910000, 3600000, 14000000
+    };
+
+    public static final int DEFAULT_CHANNELS = 2;
+    public static final int DEFAULT_SAMPLE_RATE = 48000;
+
+    private static final short LEVEL_RANGE_MB = 1500;
+    private static final String PRESET_FLAT = "Flat";
+
+    private final SoftwareEqualizer mEqualizer;
+
+    private boolean mEqRequested;
+
+    public SoftwareEffects(int sessionId, AudioDeviceInfo deviceInfo) {
+        this(sessionId, deviceInfo, DEFAULT_CENTER_FREQUENCIES, DEFAULT_CHANNELS,
+                DEFAULT_SAMPLE_RATE);
+    }
+
+    /**
+     * @param centerFrequencies band centers in millihertz, ascending
+     */
+    public SoftwareEffects(int sessionId, AudioDeviceInfo deviceInfo, int[] centerFrequencies,
+            int channels, int sampleRate) {
+        super(sessionId, deviceInfo);
+        mEqualizer = new SoftwareEqualizer(centerFrequencies, channels, sampleRate);
+        mEqualizer.setEnabled(false);
+    }
+
+    /**
+     * @return the engine, to process audio with
+     */
+    public SoftwareEqualizer getEqualizer() {
+        return mEqualizer;
+    }
+
+    public void setSampleRate(int sampleRate) {
+        mEqualizer.setSampleRate(sampleRate);
+    }
+
+    @Override
+    public int getBrand() {
+        return Constants.EFFECT_TYPE_SOFTWARE;
+    }
+
+    @Override
+    public void setGlobalEnabled(boolean globalEnabled) {
+        super.setGlobalEnabled(globalEnabled);
+
+        enableEqualizer(globalEnabled);
+    }
+
+    @Override
+    public void enableEqualizer(boolean enable) {
+        mEqRequested = enable;
+        updateEnabled();
+    }
+
+    @Override
+    public void setEqualizerLevelsDecibels(float[] levels) {
+        final int n = Math.min(levels.length, mEqualizer.getNumBands());
+        for (int i = 0; i < n; i++) {
+            setLevel(i, (short) (levels[i] * 100));
+        }
+        updateEnabled();
+    }
+
+    @Override
+    public void setEqualizerLevelsMillibels(short[] levels) {
+        final int n = Math.min(levels.length, mEqualizer.getNumBands());
+        for (int i = 0; i < n; i++) {
+            setLevel(i, levels[i]);
+        }
+        updateEnabled();
+    }
+
+    @Override
+    public void setEqualizerBandLevel(short band, float level) {
+        setLevel(band, (short) level);
+        updateEnabled();
+    }
+
+    private void setLevel(int band, short level) {
+        if (shadowBandChanged(band, level)) {
+            mEqualizer.setBandLevel(band, level);
+        }
+    }
+
+    /**
+     * Same flat-curve bypass as the platform backends.
+     */
+    private void updateEnabled() {
+        boolean flat = true;
+        for (int i = 0; i < mEqualizer.getNumBands(); i++) {
+            if (Math.abs(mEqualizer.getBandLevel(i)) > FLAT_TOLERANCE_MB) {
+                flat = false;
+                break;
+            }
+        }
+        final boolean enable = mEqRequested && !flat;
+        if (shadowChanged(SHADOW_EQ_ENABLED, enable ? 1 : 0)) {
+            mEqualizer.setEnabled(enable);
+        }
+    }
+
+    @Override
+    public void setPreGain(float gain) {
+        mEqualizer.setGain(gain);
+    }
+
+    @Override
+    public short getNumEqualizerBands() {
+        return (short) mEqualizer.getNumBands();
+    }
+
+    @Override
+    public int getEqualizerBandLevel(short band) {
+        return mEqualizer.getBandLevel(band);
+    }
+
+    @Override
+    public String getEqualizerPresetName(short preset) {
+        return PRESET_FLAT;
+    }
+
+    @Override
+    public void useEqualizerPreset(short preset) {
+        // the only preset is flat
+        for (int i = 0; i < mEqualizer.getNumBands(); i++) {
+            setLevel(i, (short) 0);
+        }
+        updateEnabled();
+    }
+
+    @Override
+    public short getNumEqualizerPresets() {
+        return 1;
+    }
+
+    @Override
+    public short[] getEqualizerBandLevelRange() {
+        return new short[]{-LEVEL_RANGE_MB, LEVEL_RANGE_MB};
+    }
+
+    @Override
+    public int getCenterFrequency(short band) {
+        return mEqualizer.getCenterFrequency(band);
+    }
+
+    @Override
+    public boolean hasVirtualizer() {
+        return false;
+    }
+
+    @Override
+    public boolean hasBassBoost() {
+        return false;
+    }
+
+    @Override
+    public void enableBassBoost(boolean enable) {
+    }
+
+    @Override
+    public void setBassBoostStrength(short strength) {
+    }
+
+    @Override
+    public void enableVirtualizer(boolean enable) {
+    }
+
+    @Override
+    public void setVirtualizerStrength(short strength) {
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.backends;
+
+import org.lineageos.audiofx.eq.Biquad;
+
+/**
+ * Pure Java equalizer: one peaking biquad per band, cascaded, processing interleaved PCM in
+ * place. Nothing is allocated while processing, except once to grow the scratch buffer for
+ * 16-bit input.
+ * <p>
+ * Not thread-safe, parameter changes and processing must happen on the same thread.
+ */
+public class SoftwareEqualizer {
+
+    private final int mBands;
+    private final int mChannels;
+    private final int[] mCenterFrequencies; // millihertz
+    private final double[] mQ;
+    private final short[] mLevels; // millibels
+
+    private final float[] mCoeffs;
+    // transposed direct form II state, two values per band and channel
+    private final float[] mState;
+
+    private int mSampleRate;
+    private boolean mEnabled = true;
+    private float mGain = 1f; // linear
+    private float[] mScratch;
+
+    /**
+     * @param centerFrequencies band centers in millihertz, ascending
+     * @param channels          number of interleaved channels
+     * @param sampleRate        in hertz
+     */
+    public SoftwareEqualizer(int[] centerFrequencies, int channels, int sampleRate) {
+        mBands = centerFrequencies.length;
+        mChannels = channels;
+        mCenterFrequencies = centerFrequencies.clone();
+        mQ = new double[mBands];
+        Biquad.qForBands(mCenterFrequencies, mQ);
+        mLevels = new short[mBands];
+        mCoeffs = new float[mBands * Biquad.COEFFS];
+        mState = new float[mBands * channels * 2];
+        mSampleRate = sampleRate;
+        for (int i = 0; i < mBands; i++) {
+            Biquad.identity(mCoeffs, i * Biquad.COEFFS);
+        }
+    }
+
+    public int getNumBands() {
+        return mBands;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return center frequency of the band in millihertz
+     */
+    public int getCenterFrequency(int band) {
+        return mCenterFrequencies[band];
+    }
+
+    /**
+     * @return level in millibels
+     */
+    public short getBandLevel(int band) {
+        return mLevels[band];
+    }
+
+    /**
+     * @param level in millibels
+     */
+    public void setBandLevel(int band, short level) {
+        if (mLevels[band] == level) {
+            return;
+        }
+        if (mLevels[band] == 0 || level == 0) {
+            // the band is skipped at 0, its history is stale on either side of that
+            resetBand(band);
+        }
+        mLevels[band] = level;
+        updateCoefficients(band);
+    }
+
+    /**
+     * Recompute every filter for a new rate and drop the filter history, which belongs to the
+     * old stream.
+     */
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate == mSampleRate) {
+            return;
+        }
+        mSampleRate = sampleRate;
+        for (int i = 0; i < mBands; i++) {
+            updateCoefficients(i);
+        }
+        reset();
+    }
+
+    public void setEnabled(boolean enabled) {
+        if (enabled && !mEnabled) {
+            // don't resume with stale history
+            reset();
+        }
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Gain applied ahead of the bands, whether they are enabled or not.
+     *
+     * @param gain in decibels
+     */
+    public void setGain(float gain) {
+        mGain = (float) Math.pow(10, gain / 20);
+    }
+
+    /**
+     * Clear the filter history.
+     */
+    public void reset() {
+        for (int i = 0; i < mState.length; i++) {
+            mState[i] = 0;
+        }
+    }
+
+    private void resetBand(int band) {
+        final int start = band * mChannels * 2;
+        for (int i = start; i < start + mChannels * 2; i++) {
+            mState[i] = 0;
+        }
+    }
+
+    private void updateCoefficients(int band) {
+        Biquad.peaking(mSampleRate, mCenterFrequencies[band] / 1000.0, mQ[band],
+                mLevels[band] / 100.0, mCoeffs, band * Biquad.COEFFS);
+    }
+
+    /**
+     * Process interleaved float samples in place.
+     *
+     * @param frames number of frames, i.e. samples per channel
+     */
+    public void process(float[] buffer, int offset, int frames) {
+        if (mGain != 1f) {
+            final int end = offset + frames * mChannels;
+            for (int i = offset; i < end; i++) {
+                buffer[i] *= mGain;
+            }
+        }
+        if (!mEnabled) {
+            return;
+        }
+        for (int band = 0; band < mBands; band++) {
+            if (mLevels[band] == 0) {
+                // unity, skip it
+                continue;
+            }
+            final int c = band * Biquad.COEFFS;
+            final float b0 = mCoeffs[c + Biquad.B0];
+            final float b1 = mCoeffs[c + Biquad.B1];
+            final float b2 = mCoeffs[c + Biquad.B2];
+            final float a1 = mCoeffs[c + Biquad.A1];
+            final float a2 = mCoeffs[c + Biquad.A2];
+
+            for (int ch = 0; ch < mChannels; ch++) {
+                final int s = (band * mChannels + ch) * 2;
+                float z1 = mState[s];
+                float z2 = mState[s + 1];
+
+                final int end = offset + frames * mChannels;
+                for (int i = offset + ch; i < end; i += mChannels) {
+                    final float x = buffer[i];
+                    final float y = b0 * x + z1;
+                    z1 = b1 * x - a1 * y + z2;
+                    z2 = b2 * x - a2 * y;
+                    buffer[i] = y;
+                }
+
+                mState[s] = z1;
+                mState[s + 1] = z2;
+            }
+        }
+    }
+
+    /**
+     * Process interleaved 16-bit samples in place, saturating on overflow.
+     *
+     * @param frames number of frames, i.e. samples per channel
+     */
+    public void process(short[] buffer, int offset, int frames) {
+        if (!mEnabled && mGain == 1f) {
+            return;
+        }
+        final int n = frames * mChannels;
+        if (mScratch == null || mScratch.length < n) {
+            mScratch = new float[n];
+        }
+        final float[] scratch = mScratch;
+        for (int i = 0; i < n; i++) {
+            scratch[i] = buffer[offset + i] * (1f / 32768f);
+        }
+        process(scratch, 0, frames);
+        for (int i = 0; i < n; i++) {
+            final float v = scratch[i] * 32768f;
+            buffer[offset + i] = v >= Short.MAX_VALUE ? Short.MAX_VALUE
+                    : v <= Short.MIN_VALUE ? Short.MIN_VALUE : (short) Math.round(v);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.eq;
+
+/**
+ * Peaking biquad coefficients after the RBJ audio EQ cookbook, shared by the software equalizer
+ * and the frequency response model so that both describe exactly the same curve.
+ * <p>
+ * Coefficients are stored normalized by a0, as five consecutive values: b0, b1, b2, a1, a2.
+ */
+public final class Biquad {
+
+    public static final int COEFFS = 5;
+
+    public static final int B0 = 0;
+    public static final int B1 = 1;
+    public static final int B2 = 2;
+    public static final int A1 = 3;
+    public static final int A2 = 4;
+
+    private Biquad() {
+    }
+
+    /**
+     * Compute a peaking filter.
+     *
+     * @param sampleRate in hertz
+     * @param frequency  center frequency in hertz
+     * @param q          quality factor
+     * @param gain       in decibels
+     * @param out        receives the coefficients at offset
+     */
+    public static void peaking(double sampleRate, double frequency, double q, double gain,
+            float[] out, int offset) {
+        if (gain == 0 || frequency <= 0 || frequency >= sampleRate * 0.49) {
+            // unity, also for bands we can't represent at this rate
+            identity(out, offset);
+            return;
+        }
+        final double a = Math.pow(10, gain / 40);
+        final double w0 = 2 * Math.PI * frequency / sampleRate;
+        final double cosW0 = Math.cos(w0);
+        final double alpha = Math.sin(w0) / (2 * q);
+
+        final double a0 = 1 + alpha / a;
+        out[offset + B0] = (float) ((1 + alpha * a) / a0);
+        out[offset + B1] = (float) ((-2 * cosW0) / a0);
+        out[offset + B2] = (float) ((1 - alpha * a) / a0);
+        out[offset + A1] = (float) ((-2 * cosW0) / a0);
+        out[offset + A2] = (float) ((1 - alpha / a) / a0);
+    }
+
+    public static void identity(float[] out, int offset) {
+        out[offset + B0] = 1;
+        out[offset + B1] = 0;
+        out[offset + B2] = 0;
+        out[offset + A1] = 0;
+        out[offset + A2] = 0;
+    }
+
+    /**
+     * Quality factor for a band whose neighbours are the given ratio away, so that adjacent
+     * bands meet at their half-gain points.
+     *
+     * @param ratio frequency ratio between two adjacent band centers, greater than 1
+     */
+    public static double qForRatio(double ratio) {
+        return Math.sqrt(ratio) / (ratio - 1);
+    }
+
+    /**
+     * Quality factor for every band in a set of center frequencies, from the spacing to their
+     * neighbours.
+     *
+     * @param centerFrequencies in any unit, ascending
+     * @param out               receives one value per band
+     */
+    public static void qForBands(int[] centerFrequencies, double[] out) {
+        final int n = centerFrequencies.length;
+        if (n == 1) {
+            out[0] = qForRatio(2); // one octave
+            return;
+        }
+        for (int i = 0; i < n; i++) {
+            final int lo = i == 0 ? 0 : i - 1;
+            final int hi = i == n - 1 ? n - 1 : i + 1;
+            // geometric mean spacing to the neighbours on both sides
+            final double ratio = Math.pow(
+                    (double) centerFrequencies[hi] / centerFrequencies[lo], 1.0 / (hi - lo));
+            out[i] = qForRatio(Math.max(ratio, 1.01));
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.eq;
+
+import java.util.Arrays;
+
+/**
+ * Models the magnitude response of a set of equalizer bands, as the cascade of the same peaking
+ * filters the software equalizer runs, evaluated at log-spaced frequencies.
+ * <p>
+ * Everything that only depends on the frequency grid is computed once. The response of each
+ * band is cached and only recomputed when that band's level changes, so dragging one band costs
+ * one band's worth of work, and asking again for the same levels costs nothing. The returned
+ * buffer is reused between calls.
+ */
+public class FrequencyResponse {
+
+    private final int mBands;
+    private final int mPoints;
+    private final int[] mCenterFrequencies; // millihertz
+    private final double[] mQ;
+    private final int mSampleRate;
+
+    private final float[] mFrequencies;
+    private final double[] mCosW;
+    private final double[] mCos2W;
+
+    // per band: current level, coefficients and response in decibels at every point
+    private final float[] mBandLevels;
+    private final float[] mCoeffs = new float[Biquad.COEFFS];
+    private final float[][] mBandResponse;
+
+    private final float[] mLastLevels;
+    private boolean mValid = false;
+    private final float[] mResponse;
+    private float mPeak;
+
+    /**
+     * @param centerFrequencies band centers in millihertz, ascending
+     * @param minFrequency      first point in hertz
+     * @param maxFrequency      last point in hertz
+     * @param points            number of points to evaluate
+     * @param sampleRate        in hertz
+     */
+    public FrequencyResponse(int[] centerFrequencies, float minFrequency, float maxFrequency,
+            int points, int sampleRate) {
+        mBands = centerFrequencies.length;
+        mPoints = points;
+        mCenterFrequencies = centerFrequencies.clone();
+        mQ = new double[mBands];
+        Biquad.qForBands(mCenterFrequencies, mQ);
+        mSampleRate = sampleRate;
+
+        mFrequencies = new float[points];
+        mCosW = new double[points];
+        mCos2W = new double[points];
+        final double span = Math.log(maxFrequency / minFrequency);
+        for (int i = 0; i < points; i++) {
+            final double f = minFrequency * Math.exp(span * i / Math.max(1, points - 1));
+            final double w = 2 * Math.PI * f / sampleRate;
+            mFrequencies[i] = (float) f;
+            mCosW[i] = Math.cos(w);
+            mCos2W[i] = Math.cos(2 * w);
+        }
+
+        mBandLevels = new float[mBands];
+        mBandResponse = new float[mBands][points];
+        mLastLevels = new float[mBands];
+        mResponse = new float[points];
+    }
+
+    public int getNumPoints() {
+        return mPoints;
+    }
+
+    /**
+     * @return frequency of a point in hertz
+     */
+    public float getFrequency(int point) {
+        return mFrequencies[point];
+    }
+
+    /**
+     * Evaluate the combined response.
+     *
+     * @param levels band levels in decibels
+     * @return response in decibels at every point. The buffer is reused by the next call and
+     * must not be modified.
+     */
+    public float[] compute(float[] levels) {
+        final int n = Math.min(levels.length, mBands);
+        if (mValid && equalsLast(levels, n)) {
+            return mResponse;
+        }
+
+        for (int band = 0; band < n; band++) {
+            if (!mValid || mBandLevels[band] != levels[band]) {
+                mBandLevels[band] = levels[band];
+                computeBand(band);
+            }
+            mLastLevels[band] = levels[band];
+        }
+        mValid = true;
+
+        Arrays.fill(mResponse, 0);
+        for (int band = 0; band < mBands; band++) {
+            if (mBandLevels[band] == 0) {
+                continue;
+            }
+            final float[] row = mBandResponse[band];
+            for (int i = 0; i < mPoints; i++) {
+                mResponse[i] += row[i];
+            }
+        }
+
+        float peak = mResponse[0];
+        for (int i = 1; i < mPoints; i++) {
+            peak = Math.max(peak, mResponse[i]);
+        }
+        mPeak = peak;
+        return mResponse;
+    }
+
+    /**
+     * @return the highest gain of the last computed response, in decibels
+     */
+    public float getPeak() {
+        return mPeak;
+    }
+
+    private boolean equalsLast(float[] levels, int n) {
+        for (int i = 0; i < n; i++) {
+            if (mLastLevels[i] != levels[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void computeBand(int band) {
+        final float[] row = mBandResponse[band];
+        if (mBandLevels[band] == 0) {
+            Arrays.fill(row, 0);
+            return;
+        }
+        Biquad.peaking(mSampleRate, mCenterFrequencies[band] / 1000.0, mQ[band],
+                mBandLevels[band], mCoeffs, 0);
+        final double b0 = mCoeffs[Biquad.B0];
+        final double b1 = mCoeffs[Biquad.B1];
+        final double b2 = mCoeffs[Biquad.B2];
+        final double a1 = mCoeffs[Biquad.A1];
+        final double a2 = mCoeffs[Biquad.A2];
+
+        // |H(e^jw)|^2 expanded in terms of cos(w) and cos(2w)
+        final double n0 = b0 * b0 + b1 * b1 + b2 * b2;
+        final double n1 = 2 * (b0 * b1 + b1 * b2);
+        final double n2 = 2 * b0 * b2;
+        final double d0 = 1 + a1 * a1 + a2 * a2;
+        final double d1 = 2 * (a1 + a1 * a2);
+        final double d2 = 2 * a2;
+        for (int i = 0; i < mPoints; i++) {
+            final double num = n0 + n1 * mCosW[i] + n2 * mCos2W[i];
+            final double den = d0 + d1 * mCosW[i] + d2 * mCos2W[i];
+            row[i] = (float) (10 * Math.log10(num / den));
+        }
+    }
+}
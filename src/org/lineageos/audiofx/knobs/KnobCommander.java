@@ -70,46 +70,45 @@ public class KnobCommander {
     }
 
     public boolean isBassEffectEnabled() {
-        return mConfig.getPrefs().getBoolean(Constants.DEVICE_AUDIOFX_BASS_ENABLE, false);
+        return mConfig.getProfile().isBassEnabled();
     }
 
     public boolean isVirtualizerEffectEnabled() {
-        return mConfig.getPrefs().getBoolean(Constants.DEVICE_AUDIOFX_VIRTUALIZER_ENABLE, false);
+        return mConfig.getProfile().isVirtualizerEnabled();
     }
 
     public int getVirtualizerStrength() {
-        return Integer.valueOf(
-                mConfig.getPrefs().getString(Constants.DEVICE_AUDIOFX_VIRTUALIZER_STRENGTH, "0"))
-                / 10;
+        return mConfig.getProfile().getVirtualizerStrength() / 10;
     }
 
     public int getBassStrength() {
-        return Integer.valueOf(
-                mConfig.getPrefs().getString(Constants.DEVICE_AUDIOFX_BASS_STRENGTH, "0")) / 10;
+        return mConfig.getProfile().getBassStrength() / 10;
     }
 
     public void setBassEnabled(boolean on) {
-        mConfig.getPrefs().edit().putBoolean(Constants.DEVICE_AUDIOFX_BASS_ENABLE, on).apply();
+        mConfig.applyPrefs(mConfig.getPrefs().edit()
+                .putBoolean(Constants.DEVICE_AUDIOFX_BASS_ENABLE, on));
         mConfig.updateService(AudioFxService.BASS_BOOST_CHANGED);
     }
 
     public void setBassStrength(int value) {
         // set parameter and state
-        mConfig.getPrefs().edit().putString(Constants.DEVICE_AUDIOFX_BASS_STRENGTH,
-                String.valueOf(value * 10)).apply();
+        mConfig.applyPrefs(mConfig.getPrefs().edit()
+                .putString(Constants.DEVICE_AUDIOFX_BASS_STRENGTH, String.valueOf(value * 10)));
         mConfig.updateService(AudioFxService.BASS_BOOST_CHANGED);
     }
 
     public void setVirtualizerEnabled(boolean on) {
-        mConfig.getPrefs().edit().putBoolean(Constants.DEVICE_AUDIOFX_VIRTUALIZER_ENABLE,
-                on).apply();
+        mConfig.applyPrefs(mConfig.getPrefs().edit()
+                .putBoolean(Constants.DEVICE_AUDIOFX_VIRTUALIZER_ENABLE, on));
         mConfig.updateService(AudioFxService.VIRTUALIZER_CHANGED);
     }
 
     public void setVirtualiserStrength(int value) {
         // set parameter and state
-        mConfig.getPrefs().edit().putString(Constants.DEVICE_AUDIOFX_VIRTUALIZER_STRENGTH,
-                String.valueOf(value * 10)).apply();
+        mConfig.applyPrefs(mConfig.getPrefs().edit()
+                .putString(Constants.DEVICE_AUDIOFX_VIRTUALIZER_STRENGTH,
+                        String.valueOf(value * 10)));
         mConfig.updateService(AudioFxService.VIRTUALIZER_CHANGED);
     }
 
@@ -10,13 +10,53 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.media.audiofx.AudioEffect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.SparseArray;
 
 import org.lineageos.audiofx.service.AudioFxService;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
 public class ServiceDispatcher extends BroadcastReceiver {
+
+    private static final String TAG = "AudioFX-Dispatcher";
+
+    /**
+     * Session broadcasts arriving within this window go to the service as one command
+     */
+    private static final long BATCH_WINDOW_MS = 50;
+
+    private static final Handler sHandler = new Handler(Looper.getMainLooper());
+
+    // main thread only
+    private static final SparseArray<Event> sBatch = new SparseArray<>();
+    private static final ArrayList<PendingResult> sPendingResults = new ArrayList<>();
+    private static Context sContext;
+
+    // metrics, main thread only
+    private static long sReceived = 0;
+    private static long sBatches = 0;
+    private static long sCollapsed = 0;
+    private static int sLargestBatch = 0;
+
+    /**
+     * The net change to one session within a batch
+     */
+    private static final class Event {
+        boolean mOpen;
+        String mPackageName;
+        long mReceivedAt;
+    }
+
+    private static final Runnable sFlush = ServiceDispatcher::flush;
+
     @Override
     public void onReceive(Context context, Intent intent) {
+        final long receivedAt = SystemClock.uptimeMillis();
 
         final String action = intent.getAction();
         final String packageName = intent.getStringExtra(AudioEffect.EXTRA_PACKAGE_NAME);
@@ -40,16 +80,96 @@ public class ServiceDispatcher extends BroadcastReceiver {
             return;
         }
 
-        Intent service = new Intent(context.getApplicationContext(), AudioFxService.class);
-        service.putExtra(AudioEffect.EXTRA_PACKAGE_NAME, packageName);
-        service.putExtra(AudioEffect.EXTRA_AUDIO_SESSION, audioSession);
-        service.putExtra(AudioEffect.EXTRA_CONTENT_TYPE, contentType);
-        service.setAction(action);
+        final boolean open;
+        if (AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION.equals(action)) {
+            open = true;
+        } else if (AudioEffect.ACTION_CLOSE_AUDIO_EFFECT_CONTROL_SESSION.equals(action)) {
+            open = false;
+        } else {
+            return;
+        }
+
+        sReceived++;
+        sContext = context.getApplicationContext();
+        final Event event = sBatch.get(audioSession);
+        if (event == null) {
+            final Event e = new Event();
+            e.mOpen = open;
+            e.mPackageName = packageName;
+            e.mReceivedAt = receivedAt;
+            sBatch.put(audioSession, e);
+        } else if (event.mOpen && !open) {
+            // the open never reaches the service, but it may already know the session from an
+            // earlier batch or from playback discovery, so the close still has to go out
+            event.mOpen = false;
+            sCollapsed++;
+        } else if (!event.mOpen && open) {
+            // reopened, the service keeps or revives what it has
+            event.mOpen = true;
+            event.mPackageName = packageName;
+            event.mReceivedAt = receivedAt;
+        }
+
+        // keep the process around until the batch is out
+        sPendingResults.add(goAsync());
+        if (sPendingResults.size() == 1) {
+            sHandler.postDelayed(sFlush, BATCH_WINDOW_MS);
+        }
 
-        context.startService(service);
         if (AudioFxService.DEBUG) {
-            Log.d("AudioFX-Dispatcher", "Received " + action);
+            Log.d(TAG, "Received " + action);
+        }
+    }
+
+    private static void flush() {
+        final int n = sBatch.size();
+        if (n > 0) {
+            int opens = 0;
+            for (int i = 0; i < n; i++) {
+                if (sBatch.valueAt(i).mOpen) {
+                    opens++;
+                }
+            }
+            final int[] openSessions = new int[opens];
+            final String[] openPackages = new String[opens];
+            final long[] openReceivedAt = new long[opens];
+            final int[] closeSessions = new int[n - opens];
+            int o = 0;
+            int c = 0;
+            for (int i = 0; i < n; i++) {
+                final Event event = sBatch.valueAt(i);
+                if (event.mOpen) {
+                    openSessions[o] = sBatch.keyAt(i);
+                    openPackages[o] = event.mPackageName;
+                    openReceivedAt[o] = event.mReceivedAt;
+                    o++;
+                } else {
+                    closeSessions[c++] = sBatch.keyAt(i);
+                }
+            }
+
+            Intent service = new Intent(sContext, AudioFxService.class);
+            service.setAction(AudioFxService.ACTION_SESSION_BATCH);
+            service.putExtra(AudioFxService.EXTRA_OPEN_SESSIONS, openSessions);
+            service.putExtra(AudioFxService.EXTRA_OPEN_PACKAGES, openPackages);
+            service.putExtra(AudioFxService.EXTRA_OPEN_RECEIVED_AT, openReceivedAt);
+            service.putExtra(AudioFxService.EXTRA_CLOSE_SESSIONS, closeSessions);
+            sContext.startService(service);
+
+            sBatches++;
+            sLargestBatch = Math.max(sLargestBatch, n);
+            sBatch.clear();
         }
 
+        for (int i = 0; i < sPendingResults.size(); i++) {
+            sPendingResults.get(i).finish();
+        }
+        sPendingResults.clear();
+    }
+
+    public static void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "ServiceDispatcher: " + sReceived + " broadcasts in " + sBatches
+                + " batches (largest " + sLargestBatch + "), " + sCollapsed
+                + " open/close pairs collapsed into a close");
     }
 }
@@ -0,0 +1,212 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.service;
+
+import static android.media.AudioDeviceInfo.convertDeviceTypeToInternalDevice;
+
+import android.content.Context;
+import android.media.AudioDeviceCallback;
+import android.media.AudioDeviceInfo;
+import android.media.AudioManager;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The connected output devices, indexed by id and by type.
+ * <p>
+ * The table is scanned from AudioManager once and then kept up to date from the added and
+ * removed devices reported by device callbacks, instead of querying every device again on
+ * each change. Readers get an immutable snapshot without locking, from any thread.
+ * <p>
+ * Holders get the table from {@link #getInstance(Context)} and give it back with
+ * {@link #release()}, the device callback is unregistered when the last holder is gone.
+ */
+public final class AudioDeviceTable {
+
+    private static AudioDeviceTable sInstance;
+    private static int sRefCount = 0;
+
+    private final AudioManager mAudioManager;
+    private final AudioDeviceCallback mCallback = new AudioDeviceCallback() {
+        @Override
+        public void onAudioDevicesAdded(AudioDeviceInfo[] addedDevices) {
+            update(addedDevices, null);
+        }
+
+        @Override
+        public void onAudioDevicesRemoved(AudioDeviceInfo[] removedDevices) {
+            update(null, removedDevices);
+        }
+    };
+
+    private volatile Snapshot mSnapshot;
+
+    private static final class Snapshot {
+        /** in the order AudioManager reported them */
+        final AudioDeviceInfo[] mDevices;
+        /** internal device bits of each entry of mDevices */
+        final int[] mInternal;
+        final SparseArray<AudioDeviceInfo> mById = new SparseArray<>();
+        final SparseArray<List<AudioDeviceInfo>> mByType = new SparseArray<>();
+
+        Snapshot(AudioDeviceInfo[] devices) {
+            mDevices = devices;
+            mInternal = new int[devices.length];
+            for (int i = 0; i < devices.length; i++) {
+                final AudioDeviceInfo device = devices[i];
+                mInternal[i] = convertDeviceTypeToInternalDevice(device.getType());
+                mById.put(device.getId(), device);
+                List<AudioDeviceInfo> ofType = mByType.get(device.getType());
+                if (ofType == null) {
+                    ofType = new ArrayList<>(1);
+                    mByType.put(device.getType(), ofType);
+                }
+                ofType.add(device);
+            }
+        }
+    }
+
+    private AudioDeviceTable(AudioManager audioManager) {
+        mAudioManager = audioManager;
+        mSnapshot = new Snapshot(scan());
+    }
+
+    /**
+     * @return the table for this process, which keeps itself up to date until every caller
+     * has called {@link #release()}
+     */
+    public static synchronized AudioDeviceTable getInstance(Context context) {
+        if (sInstance == null) {
+            final AudioManager audioManager = context.getApplicationContext()
+                    .getSystemService(AudioManager.class);
+            final AudioDeviceTable table = new AudioDeviceTable(audioManager);
+            audioManager.registerAudioDeviceCallback(table.mCallback,
+                    new Handler(Looper.getMainLooper()));
+            sInstance = table;
+        }
+        sRefCount++;
+        return sInstance;
+    }
+
+    /**
+     * Give back a table from {@link #getInstance(Context)}. It must not be used afterwards.
+     */
+    public void release() {
+        synchronized (AudioDeviceTable.class) {
+            if (sInstance != this || sRefCount == 0) {
+                return;
+            }
+            if (--sRefCount == 0) {
+                mAudioManager.unregisterAudioDeviceCallback(mCallback);
+                sInstance = null;
+            }
+        }
+    }
+
+    /**
+     * Apply a device change. Adding a known id or removing an unknown one is a no-op, so the
+     * same change may be applied by several callbacks.
+     */
+    synchronized void update(AudioDeviceInfo[] added, AudioDeviceInfo[] removed) {
+        final Snapshot current = mSnapshot;
+        final ArrayList<AudioDeviceInfo> devices = new ArrayList<>(Arrays.asList(
+                current.mDevices));
+        boolean changed = false;
+        if (removed != null) {
+            for (AudioDeviceInfo device : removed) {
+                final AudioDeviceInfo known = current.mById.get(device.getId());
+                if (known != null) {
+                    devices.remove(known);
+                    changed = true;
+                }
+            }
+        }
+        if (added != null) {
+            for (AudioDeviceInfo device : outputsOf(added)) {
+                if (current.mById.get(device.getId()) != null) {
+                    continue;
+                }
+                final int internal = convertDeviceTypeToInternalDevice(device.getType());
+                for (int i = 0; i < current.mDevices.length; i++) {
+                    if ((current.mInternal[i] & internal) != 0) {
+                        // the first of several devices behind the same internal device is the
+                        // one in use, and only AudioManager knows which that is
+                        mSnapshot = new Snapshot(scan());
+                        return;
+                    }
+                }
+                devices.add(device);
+                changed = true;
+            }
+        }
+        if (changed) {
+            mSnapshot = new Snapshot(devices.toArray(new AudioDeviceInfo[0]));
+        }
+    }
+
+    private AudioDeviceInfo[] scan() {
+        return outputsOf(mAudioManager.getDevices(AudioManager.GET_DEVICES_OUTPUTS));
+    }
+
+    private static AudioDeviceInfo[] outputsOf(AudioDeviceInfo[] devices) {
+        final ArrayList<AudioDeviceInfo> outputs = new ArrayList<>(devices.length);
+        for (AudioDeviceInfo device : devices) {
+            if (device.isSink()) {
+                outputs.add(device);
+            }
+        }
+        return outputs.toArray(new AudioDeviceInfo[0]);
+    }
+
+    public AudioDeviceInfo getDeviceById(int id) {
+        return mSnapshot.mById.get(id);
+    }
+
+    /**
+     * @param types AudioDeviceInfo.TYPE_* to include, none for all devices
+     */
+    public List<AudioDeviceInfo> getDevices(int... types) {
+        final Snapshot snapshot = mSnapshot;
+        if (types.length == 0) {
+            return new ArrayList<>(Arrays.asList(snapshot.mDevices));
+        }
+        if (types.length == 1) {
+            final List<AudioDeviceInfo> ofType = snapshot.mByType.get(types[0]);
+            return ofType != null ? new ArrayList<>(ofType) : new ArrayList<>();
+        }
+        // keep the reported order across types
+        final List<AudioDeviceInfo> devices = new ArrayList<>();
+        for (AudioDeviceInfo device : snapshot.mDevices) {
+            for (int type : types) {
+                if (device.getType() == type) {
+                    devices.add(device);
+                }
+            }
+        }
+        return devices;
+    }
+
+    /**
+     * @param internalDevices mask of internal device bits, as returned by
+     *                        AudioManager.getDevicesForStream()
+     * @return the devices matching the mask, in the order AudioManager reported them
+     */
+    public List<AudioDeviceInfo> getDevicesForInternalMask(int internalDevices) {
+        final Snapshot snapshot = mSnapshot;
+        final List<AudioDeviceInfo> devices = new ArrayList<>();
+        for (int i = 0; i < snapshot.mDevices.length; i++) {
+            if ((snapshot.mInternal[i] & internalDevices) > 0) {
+                devices.add(snapshot.mDevices[i]);
+            }
+        }
+        return devices;
+    }
+}
@@ -14,12 +14,16 @@ import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import org.lineageos.audiofx.backends.EffectSet;
+import org.lineageos.audiofx.receiver.ServiceDispatcher;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 
 /**
@@ -41,6 +45,19 @@ public class AudioFxService extends Service
 
     public static final String EXTRA_DEVICE = "device";
 
+    /**
+     * Session broadcasts coalesced by ServiceDispatcher. Each session appears at most once,
+     * an open followed by a close of the same session within a batch arrives as a close.
+     */
+    public static final String ACTION_SESSION_BATCH
+            = "org.lineageos.audiofx.action.SESSION_BATCH";
+    public static final String EXTRA_OPEN_SESSIONS = "org.lineageos.audiofx.extra.OPEN_SESSIONS";
+    public static final String EXTRA_OPEN_PACKAGES = "org.lineageos.audiofx.extra.OPEN_PACKAGES";
+    public static final String EXTRA_OPEN_RECEIVED_AT
+            = "org.lineageos.audiofx.extra.OPEN_RECEIVED_AT";
+    public static final String EXTRA_CLOSE_SESSIONS
+            = "org.lineageos.audiofx.extra.CLOSE_SESSIONS";
+
     // flags for updateService to minimize DSP traffic
     public static final int EQ_CHANGED = 0x1;
     public static final int BASS_BOOST_CHANGED = 0x2;
@@ -77,9 +94,9 @@ public class AudioFxService extends Service
             }
         }
 
-        public void setOverrideLevels(short band, float level) {
+        public void setOverrideLevels(float[] levels) {
             if (checkService()) {
-                mService.get().mSessionManager.setOverrideLevels(band, level);
+                mService.get().mSessionManager.setOverrideLevels(levels);
             }
         }
 
@@ -122,14 +139,17 @@ public class AudioFxService extends Service
             Log.i(TAG, "onStartCommand() called with " + "intent = [" + intent + "], flags = ["
                     + flags + "], startId = [" + startId + "]");
         }
-        if (intent != null && intent.getAction() != null) {
+        if (intent != null && ACTION_SESSION_BATCH.equals(intent.getAction())) {
+            handleSessionBatch(intent);
+        } else if (intent != null && intent.getAction() != null) {
             String action = intent.getAction();
             int sessionId = intent.getIntExtra(AudioEffect.EXTRA_AUDIO_SESSION,
                     AudioEffect.ERROR_BAD_VALUE);
             String pkg = intent.getStringExtra(AudioEffect.EXTRA_PACKAGE_NAME);
 
             if (action.equals(AudioEffect.ACTION_OPEN_AUDIO_EFFECT_CONTROL_SESSION)) {
-                mSessionManager.addSession(sessionId);
+                mSessionManager.addSession(sessionId, pkg, AudioSession.SOURCE_BROADCAST,
+                        SystemClock.uptimeMillis());
             } else if (action.equals(AudioEffect.ACTION_CLOSE_AUDIO_EFFECT_CONTROL_SESSION)) {
                 mSessionManager.removeSession(sessionId);
             }
@@ -137,6 +157,25 @@ public class AudioFxService extends Service
         return START_STICKY;
     }
 
+    private void handleSessionBatch(Intent intent) {
+        final int[] closed = intent.getIntArrayExtra(EXTRA_CLOSE_SESSIONS);
+        if (closed != null) {
+            for (int sessionId : closed) {
+                mSessionManager.removeSession(sessionId);
+            }
+        }
+
+        final int[] opened = intent.getIntArrayExtra(EXTRA_OPEN_SESSIONS);
+        final String[] packages = intent.getStringArrayExtra(EXTRA_OPEN_PACKAGES);
+        final long[] receivedAt = intent.getLongArrayExtra(EXTRA_OPEN_RECEIVED_AT);
+        if (opened != null && packages != null && receivedAt != null) {
+            for (int i = 0; i < opened.length; i++) {
+                mSessionManager.addSession(opened[i], packages[i],
+                        AudioSession.SOURCE_BROADCAST, receivedAt[i]);
+            }
+        }
+    }
+
     @Override
     public synchronized void onAudioOutputChanged(boolean firstChange,
             AudioDeviceInfo outputDevice) {
@@ -161,6 +200,7 @@ public class AudioFxService extends Service
         if (DEBUG) Log.i(TAG, "Stopping service.");
 
         mOutputListener.removeCallback(this, mSessionManager, mDevicePrefs);
+        mOutputListener.release();
         if (mSessionManager != null) {
             mSessionManager.onDestroy();
         }
@@ -181,6 +221,7 @@ public class AudioFxService extends Service
             case TRIM_MEMORY_MODERATE:
             case TRIM_MEMORY_RUNNING_MODERATE:
             case TRIM_MEMORY_COMPLETE:
+                mSessionManager.onTrimMemory();
                 if (DEBUG) Log.d(TAG, "killing service if no effects active.");
                 mHandler.postDelayed(() -> {
                     if (!mSessionManager.hasActiveSessions()) {
@@ -196,6 +237,16 @@ public class AudioFxService extends Service
         }
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println(TAG);
+        pw.println("  mCurrentDevice: " + mCurrentDevice);
+        ServiceDispatcher.dump(pw, "  ");
+        if (mSessionManager != null) {
+            mSessionManager.dump(pw, "  ");
+        }
+    }
+
     /**
      * Queue up a backend update.
      */
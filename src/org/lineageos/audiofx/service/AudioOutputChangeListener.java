@@ -6,8 +6,6 @@
 
 package org.lineageos.audiofx.service;
 
-import static android.media.AudioDeviceInfo.convertDeviceTypeToInternalDevice;
-
 import android.content.Context;
 import android.media.AudioDeviceCallback;
 import android.media.AudioDeviceInfo;
@@ -28,6 +26,7 @@ public class AudioOutputChangeListener extends AudioDeviceCallback {
     private final Context mContext;
     private final AudioManager mAudioManager;
     private final Handler mHandler;
+    private final AudioDeviceTable mDevices;
     private int mLastDevice = -1;
 
     private final ArrayList<AudioOutputChangedCallback> mCallbacks = new ArrayList<>();
@@ -40,6 +39,7 @@ public class AudioOutputChangeListener extends AudioDeviceCallback {
         mContext = context;
         mAudioManager = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
         mHandler = handler;
+        mDevices = AudioDeviceTable.getInstance(context);
     }
 
     public void addCallback(AudioOutputChangedCallback... callbacks) {
@@ -94,23 +94,27 @@ public class AudioOutputChangeListener extends AudioDeviceCallback {
 
     @Override
     public void onAudioDevicesAdded(AudioDeviceInfo[] addedDevices) {
+        // the table has its own callback, but it may not have run yet
+        mDevices.update(addedDevices, null);
         callback();
     }
 
     @Override
     public void onAudioDevicesRemoved(AudioDeviceInfo[] removedDevices) {
+        mDevices.update(null, removedDevices);
         callback();
     }
 
+    /**
+     * Drop the device table, the listener must not be used afterwards.
+     */
+    public void release() {
+        mDevices.release();
+    }
+
     public List<AudioDeviceInfo> getConnectedOutputs() {
-        final List<AudioDeviceInfo> outputs = new ArrayList<>();
         final int forMusic = mAudioManager.getDevicesForStream(AudioManager.STREAM_MUSIC);
-        for (AudioDeviceInfo ai : mAudioManager.getDevices(AudioManager.GET_DEVICES_OUTPUTS)) {
-            if ((convertDeviceTypeToInternalDevice(ai.getType()) & forMusic) > 0) {
-                outputs.add(ai);
-            }
-        }
-        return outputs;
+        return mDevices.getDevicesForInternalMask(forMusic);
     }
 
     public AudioDeviceInfo getCurrentDevice() {
@@ -0,0 +1,154 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.service;
+
+import org.lineageos.audiofx.backends.EffectSet;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An audio session known to the service, and the lifecycle of the effects attached to it.
+ * <p>
+ * State changes are compare-and-set, so any thread can announce or retire a session without
+ * waiting for the backend thread. Effects are only created, updated and released on the backend
+ * thread.
+ * <pre>
+ *   PENDING ---attach---> ATTACHED ---remove---> RELEASING ---release---> RELEASED
+ *      |                     ^                      |  ^
+ *      |                     +-------re-add---------+  |
+ *      +-------------------remove----------------------+
+ * </pre>
+ */
+class AudioSession {
+
+    enum State {
+        /** announced, effects not created yet */
+        PENDING,
+        /** effects are attached and receive updates */
+        ATTACHED,
+        /** closed by the client, effects will be released unless it comes back */
+        RELEASING,
+        /** effects released and the session dropped from the registry */
+        RELEASED
+    }
+
+    /** announced by the OPEN_AUDIO_EFFECT_CONTROL_SESSION broadcast */
+    static final int SOURCE_BROADCAST = 0;
+    /** discovered from the playback configurations */
+    static final int SOURCE_PLAYBACK = 1;
+    static final int SOURCES = 2;
+
+    final int mSessionId;
+    final String mPackageName;
+    /** owner of the session, Process.INVALID_UID if unknown */
+    final int mUid;
+
+    private volatile int mSource;
+    private volatile long mAnnouncedAt;
+
+    private final AtomicReference<State> mState = new AtomicReference<>(State.PENDING);
+
+    private volatile EffectSet mEffects;
+
+    // backend thread only
+    private boolean mSuspended;
+    private long mAttachedAt;
+
+    AudioSession(int sessionId, String packageName, int uid, int source, long announcedAt) {
+        mSessionId = sessionId;
+        mPackageName = packageName;
+        mUid = uid;
+        mSource = source;
+        mAnnouncedAt = announcedAt;
+    }
+
+    /**
+     * @return how the session was found, one of the SOURCE_* constants
+     */
+    int getSource() {
+        return mSource;
+    }
+
+    /**
+     * @return uptime when the session was announced, or revived
+     */
+    long getAnnouncedAt() {
+        return mAnnouncedAt;
+    }
+
+    /**
+     * A session found on playback was announced by its client after all, which will also
+     * tell us when it's done.
+     */
+    void setSource(int source) {
+        mSource = source;
+    }
+
+    void setAnnouncedAt(long announcedAt) {
+        mAnnouncedAt = announcedAt;
+    }
+
+    State getState() {
+        return mState.get();
+    }
+
+    /**
+     * Atomically move from one state to another.
+     *
+     * @return false if the session was not in the expected state
+     */
+    boolean transition(State from, State to) {
+        return mState.compareAndSet(from, to);
+    }
+
+    /**
+     * @return the attached effects, or null if they are not created yet or already released
+     */
+    EffectSet getEffects() {
+        return mEffects;
+    }
+
+    /**
+     * Must only be called from the backend thread.
+     */
+    void setEffects(EffectSet effects) {
+        mEffects = effects;
+    }
+
+    /**
+     * @return true if the effects are disabled because the session has been idle
+     */
+    boolean isSuspended() {
+        return mSuspended;
+    }
+
+    /**
+     * Must only be called from the backend thread.
+     */
+    void setSuspended(boolean suspended) {
+        mSuspended = suspended;
+    }
+
+    /**
+     * @return uptime when the effects were attached
+     */
+    long getAttachedAt() {
+        return mAttachedAt;
+    }
+
+    /**
+     * Must only be called from the backend thread.
+     */
+    void setAttachedAt(long attachedAt) {
+        mAttachedAt = attachedAt;
+    }
+
+    @Override
+    public String toString() {
+        return "AudioSession [ " + mSessionId + " " + mPackageName + " " + mState.get()
+                + (mSuspended ? " suspended " : " ") + mEffects + " ]";
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.service;
+
+import android.util.SparseIntArray;
+import android.util.SparseLongArray;
+
+import java.io.PrintWriter;
+
+/**
+ * Paces re-applying effects after another app had control of them. Each consecutive restore
+ * of the same session waits twice as long as the previous one, so two apps fighting over a
+ * session settle down instead of looping. The backoff is forgotten once a session has been
+ * left alone for a while.
+ * <p>
+ * Backend thread only.
+ */
+class ControlRecovery {
+
+    static final long BASE_DELAY_MS = 100;
+    static final long MAX_DELAY_MS = 30000;
+    static final long RESET_MS = 60000;
+
+    private final SparseIntArray mAttempts = new SparseIntArray();
+    private final SparseLongArray mLastRestore = new SparseLongArray();
+
+    // metrics
+    private long mRestores = 0;
+    private long mBackedOff = 0;
+    private long mMaxDelay = 0;
+
+    /**
+     * Account for a restore of the session.
+     *
+     * @return how long to wait before re-applying its effects
+     */
+    long nextDelay(int sessionId, long now) {
+        final int last = mLastRestore.indexOfKey(sessionId);
+        int attempts = mAttempts.get(sessionId);
+        if (last < 0 || now - mLastRestore.valueAt(last) > RESET_MS) {
+            attempts = 0;
+        }
+        final long delay = Math.min(BASE_DELAY_MS << Math.min(attempts, 16), MAX_DELAY_MS);
+        mAttempts.put(sessionId, attempts + 1);
+        mLastRestore.put(sessionId, now + delay);
+
+        mRestores++;
+        if (attempts > 0) {
+            mBackedOff++;
+        }
+        mMaxDelay = Math.max(mMaxDelay, delay);
+        return delay;
+    }
+
+    void remove(int sessionId) {
+        mAttempts.delete(sessionId);
+        mLastRestore.delete(sessionId);
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "ControlRecovery: " + mRestores + " restores, "
+                + mBackedOff + " backed off, max delay " + mMaxDelay + "ms, "
+                + mAttempts.size() + " sessions tracked");
+    }
+}
@@ -34,10 +34,10 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import org.lineageos.audiofx.Constants;
+import org.lineageos.audiofx.DeviceProfile;
 import org.lineageos.audiofx.R;
 import org.lineageos.audiofx.activity.MasterConfigControl;
-import org.lineageos.audiofx.backends.EffectSet;
-import org.lineageos.audiofx.backends.EffectsFactory;
+import org.lineageos.audiofx.backends.EffectSetDescriptor;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -84,6 +84,14 @@ public class DevicePreferenceManager
                 MasterConfigControl.getDeviceIdentifierString(mCurrentDevice), 0);
     }
 
+    /**
+     * @return the cached, typed snapshot of the current device's preferences
+     */
+    public DeviceProfile getCurrentDeviceProfile() {
+        return DeviceProfile.get(mContext,
+                MasterConfigControl.getDeviceIdentifierString(mCurrentDevice));
+    }
+
     public SharedPreferences prefsFor(final String name) {
         return mContext.getSharedPreferences(name, 0);
     }
@@ -93,7 +101,7 @@ public class DevicePreferenceManager
     }
 
     public boolean isGlobalEnabled() {
-        return getCurrentDevicePrefs().getBoolean(DEVICE_AUDIOFX_GLOBAL_ENABLE, false);
+        return getCurrentDeviceProfile().isGlobalEnabled();
     }
 
     /**
@@ -124,16 +132,17 @@ public class DevicePreferenceManager
             }
             return;
         }
-        EffectSet temp = new EffectsFactory().createEffectSet(mContext, 0, null);
+        // cached per build, so rebuilding prefs after an app update doesn't touch audioserver
+        final EffectSetDescriptor desc = EffectSetDescriptor.get(mContext);
 
-        final int numBands = temp.getNumEqualizerBands();
-        final int numPresets = temp.getNumEqualizerPresets();
+        final short numBands = desc.getNumEqualizerBands();
+        final short numPresets = desc.getNumEqualizerPresets();
         SharedPreferences.Editor editor = prefs.edit();
         editor.putString(EQUALIZER_NUMBER_OF_PRESETS, String.valueOf(numPresets));
         editor.putString(EQUALIZER_NUMBER_OF_BANDS, String.valueOf(numBands));
 
         // range
-        short[] rangeShortArr = temp.getEqualizerBandLevelRange();
+        short[] rangeShortArr = desc.getEqualizerBandLevelRange();
         editor.putString(EQUALIZER_BAND_LEVEL_RANGE, rangeShortArr[0]
                 + ";" + rangeShortArr[1]);
 
@@ -141,7 +150,7 @@ public class DevicePreferenceManager
         StringBuilder centerFreqs = new StringBuilder();
         // audiofx.global.centerfreqs
         for (short i = 0; i < numBands; i++) {
-            centerFreqs.append(temp.getCenterFrequency(i));
+            centerFreqs.append(desc.getCenterFrequency(i));
             centerFreqs.append(";");
 
         }
@@ -150,18 +159,16 @@ public class DevicePreferenceManager
 
         // populate preset names
         StringBuilder presetNames = new StringBuilder();
-        for (int i = 0; i < numPresets; i++) {
-            String presetName = temp.getEqualizerPresetName((short) i);
+        for (short i = 0; i < numPresets; i++) {
+            String presetName = desc.getEqualizerPresetName(i);
             presetNames.append(presetName);
             presetNames.append("|");
 
             // populate preset band values
             StringBuilder presetBands = new StringBuilder();
-            temp.useEqualizerPreset((short) i);
-
-            for (int j = 0; j < numBands; j++) {
+            for (short j = 0; j < numBands; j++) {
                 // loop through preset bands
-                presetBands.append(temp.getEqualizerBandLevel((short) j));
+                presetBands.append(desc.getEqualizerPresetBandLevel(i, j));
                 presetBands.append(";");
             }
             presetBands.deleteCharAt(presetBands.length() - 1);
@@ -172,11 +179,10 @@ public class DevicePreferenceManager
         }
         editor.putString(EQUALIZER_PRESET_NAMES, presetNames.toString());
 
-        editor.putBoolean(AUDIOFX_GLOBAL_HAS_VIRTUALIZER, temp.hasVirtualizer());
-        editor.putBoolean(AUDIOFX_GLOBAL_HAS_REVERB, temp.hasReverb());
-        editor.putBoolean(AUDIOFX_GLOBAL_HAS_BASSBOOST, temp.hasBassBoost());
+        editor.putBoolean(AUDIOFX_GLOBAL_HAS_VIRTUALIZER, desc.hasVirtualizer());
+        editor.putBoolean(AUDIOFX_GLOBAL_HAS_REVERB, desc.hasReverb());
+        editor.putBoolean(AUDIOFX_GLOBAL_HAS_BASSBOOST, desc.hasBassBoost());
         editor.apply();
-        temp.release();
 
         applyDefaults(needsPrefsUpdate);
 
@@ -230,6 +236,7 @@ public class DevicePreferenceManager
                 .putString(DEVICE_AUDIOFX_VIRTUALIZER_STRENGTH, "200")
                 .putString(DEVICE_AUDIOFX_EQ_PRESET, (flat >= 0 ? String.valueOf(flat) : "0"))
                 .apply();
+        DeviceProfile.refresh(mContext, DEVICE_HEADSET);
 
         // for 5 band configs, let's add a `Small Speaker` configuration if one
         // doesn't exist ( from oss AudioFX: -170;270;50;-220;200 )
@@ -256,6 +263,7 @@ public class DevicePreferenceManager
                     .putBoolean(DEVICE_AUDIOFX_GLOBAL_ENABLE, true)
                     .putString(DEVICE_AUDIOFX_EQ_PRESET, String.valueOf(idx))
                     .apply();
+            DeviceProfile.refresh(mContext, DEVICE_SPEAKER);
         }
     }
 
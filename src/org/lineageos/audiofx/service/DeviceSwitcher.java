@@ -0,0 +1,149 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseArray;
+
+import org.lineageos.audiofx.backends.EffectSet;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies an output device switch to all sessions concurrently.
+ * <p>
+ * Every session gets its own task on a small bounded pool, playing sessions queued first, and
+ * the backend thread waits on a barrier until all of them are done. Since sessions are only
+ * released on the backend thread, none of them can go away while a switch is in flight.
+ */
+class DeviceSwitcher {
+
+    private static final String TAG = AudioFxService.TAG;
+
+    private static final int MAX_WORKERS = 4;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+
+    interface SessionUpdater {
+        void apply(EffectSet effects);
+    }
+
+    private final PlaybackStateTracker mPlaybackState;
+    private final ThreadPoolExecutor mExecutor;
+
+    // reused between switches, only touched from the backend thread
+    private final ArrayList<EffectSet> mBatch = new ArrayList<>();
+
+    // metrics
+    private long mSwitches = 0;
+    private long mSessionsSwitched = 0;
+    private long mLastLatency = 0;
+    private long mMaxLatency = 0;
+    private long mTotalLatency = 0;
+
+    DeviceSwitcher(PlaybackStateTracker playbackState) {
+        mPlaybackState = playbackState;
+
+        final int workers = Math.max(1,
+                Math.min(MAX_WORKERS, Runtime.getRuntime().availableProcessors()));
+        final AtomicInteger count = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(workers, workers,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "AudioFx-Switch-" + count.incrementAndGet()));
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run the updater on every attached session and wait for all of them to finish.
+     * <p>
+     * This must only be called from the backend thread!
+     */
+    void switchAll(SparseArray<AudioSession> sessions, SessionUpdater updater) {
+        final long start = SystemClock.uptimeMillis();
+
+        mBatch.clear();
+        for (int pass = 0; pass < 2; pass++) {
+            final boolean wantActive = pass == 0;
+            for (int i = 0; i < sessions.size(); i++) {
+                final AudioSession session = sessions.valueAt(i);
+                final EffectSet effects = session.getEffects();
+                // suspended sessions pick up the device when they resume
+                if (effects != null && !session.isSuspended()
+                        && mPlaybackState.isSessionActive(session.mSessionId) == wantActive) {
+                    mBatch.add(effects);
+                }
+            }
+        }
+
+        final int n = mBatch.size();
+        if (n == 1) {
+            // not worth the hop
+            apply(updater, mBatch.get(0));
+        } else if (n > 1) {
+            final CountDownLatch barrier = new CountDownLatch(n);
+            for (int i = 0; i < n; i++) {
+                final EffectSet effects = mBatch.get(i);
+                mExecutor.execute(() -> {
+                    try {
+                        apply(updater, effects);
+                    } finally {
+                        barrier.countDown();
+                    }
+                });
+            }
+            awaitUninterruptibly(barrier);
+        }
+        mBatch.clear();
+
+        synchronized (this) {
+            mSwitches++;
+            mSessionsSwitched += n;
+            mLastLatency = SystemClock.uptimeMillis() - start;
+            mMaxLatency = Math.max(mMaxLatency, mLastLatency);
+            mTotalLatency += mLastLatency;
+        }
+    }
+
+    void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    private static void apply(SessionUpdater updater, EffectSet effects) {
+        try {
+            updater.apply(effects);
+        } catch (Exception e) {
+            Log.e(TAG, "Error switching device for " + effects, e);
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch barrier) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                barrier.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "DeviceSwitcher (" + mExecutor.getMaximumPoolSize() + " workers)");
+        pw.println(prefix + "  switches: " + mSwitches + " sessions: " + mSessionsSwitched);
+        pw.println(prefix + "  switch latency last: " + mLastLatency + "ms max: " + mMaxLatency
+                + "ms avg: " + (mSwitches > 0 ? mTotalLatency / mSwitches : 0) + "ms");
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.service;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.lineageos.audiofx.backends.EffectSet;
+
+import java.io.PrintWriter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps recently released EffectSets warm so that players which close and immediately reopen
+ * the same session (gapless transitions, seeks, track changes) don't pay for tearing down and
+ * recreating all the native effects.
+ * <p>
+ * Parked sets are put in bypass, keyed by session id and owner uid, bounded in size (least
+ * recently parked goes first) and released once they have been parked longer than the TTL.
+ * <p>
+ * This must only be used from the backend thread, except for {@link #dump}.
+ */
+class EffectSetPool {
+
+    private static final String TAG = AudioFxService.TAG;
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private static final class Key {
+        final int mSessionId;
+        final int mUid;
+
+        Key(int sessionId, int uid) {
+            mSessionId = sessionId;
+            mUid = uid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mSessionId == other.mSessionId && mUid == other.mUid;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mSessionId + mUid;
+        }
+
+        @Override
+        public String toString() {
+            return mSessionId + "/" + mUid;
+        }
+    }
+
+    private static final class Entry {
+        final EffectSet mEffects;
+        final long mParkedAt;
+
+        Entry(EffectSet effects, long parkedAt) {
+            mEffects = effects;
+            mParkedAt = parkedAt;
+        }
+    }
+
+    private final int mCapacity;
+    private final long mTtl;
+
+    // insertion ordered, so the eldest entry is always the first to expire
+    private final LinkedHashMap<Key, Entry> mParked = new LinkedHashMap<>();
+
+    // metrics
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mExpired = 0;
+    private long mEvicted = 0;
+
+    EffectSetPool(int capacity, long ttl) {
+        mCapacity = capacity;
+        mTtl = ttl;
+    }
+
+    boolean isEnabled() {
+        return mCapacity > 0 && mTtl > 0;
+    }
+
+    long getTtl() {
+        return mTtl;
+    }
+
+    /**
+     * Park a released session's effects in bypass.
+     *
+     * @return false if the pool is disabled or bypassing failed, the caller must release the
+     * effects itself in that case
+     */
+    synchronized boolean park(int sessionId, int uid, EffectSet effects) {
+        if (!isEnabled()) {
+            return false;
+        }
+        try {
+            effects.setGlobalEnabled(false);
+        } catch (Exception e) {
+            Log.e(TAG, "couldn't bypass " + effects + ", not pooling it", e);
+            return false;
+        }
+
+        // re-insert rather than overwrite, so a re-parked entry becomes the newest again
+        final Key key = new Key(sessionId, uid);
+        final Entry old = mParked.remove(key);
+        mParked.put(key, new Entry(effects, SystemClock.uptimeMillis()));
+        if (old != null && old.mEffects != effects) {
+            old.mEffects.release();
+        }
+        while (mParked.size() > mCapacity) {
+            final Iterator<Entry> it = mParked.values().iterator();
+            it.next().mEffects.release();
+            it.remove();
+            mEvicted++;
+        }
+        if (DEBUG) Log.d(TAG, "parked effects for session " + sessionId + "/" + uid);
+        return true;
+    }
+
+    /**
+     * @return the parked effects for this session and owner, or null on a miss
+     */
+    synchronized EffectSet take(int sessionId, int uid) {
+        if (!isEnabled()) {
+            return null;
+        }
+        final Entry entry = mParked.remove(new Key(sessionId, uid));
+        if (entry == null || SystemClock.uptimeMillis() - entry.mParkedAt > mTtl) {
+            if (entry != null) {
+                entry.mEffects.release();
+                mExpired++;
+            }
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.mEffects;
+    }
+
+    /**
+     * Release everything which outlived the TTL.
+     *
+     * @return milliseconds until the next entry expires, or -1 if the pool is empty
+     */
+    synchronized long expire() {
+        final long now = SystemClock.uptimeMillis();
+        final Iterator<Entry> it = mParked.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            final long age = now - entry.mParkedAt;
+            if (age < mTtl) {
+                return mTtl - age;
+            }
+            entry.mEffects.release();
+            it.remove();
+            mExpired++;
+        }
+        return -1;
+    }
+
+    /**
+     * Release everything, e.g. under memory pressure.
+     */
+    synchronized void evictAll() {
+        for (Map.Entry<Key, Entry> e : mParked.entrySet()) {
+            e.getValue().mEffects.release();
+            mEvicted++;
+        }
+        mParked.clear();
+    }
+
+    synchronized boolean isEmpty() {
+        return mParked.isEmpty();
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "EffectSetPool (" + mParked.size() + "/" + mCapacity
+                + " parked, ttl " + mTtl + "ms)");
+        pw.println(prefix + "  hits: " + mHits + " misses: " + mMisses
+                + " expired: " + mExpired + " evicted: " + mEvicted);
+        for (Key key : mParked.keySet()) {
+            pw.println(prefix + "  " + key);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.service;
+
+import java.io.PrintWriter;
+
+/**
+ * Single-slot, latest-wins mailbox which carries a whole equalizer band vector (in decibels) from
+ * the UI to the backend thread.
+ * <p>
+ * Publishing overwrites any vector which has not been consumed yet, so the backend only ever
+ * applies the most recent one and stale animation frames are dropped. Neither side allocates
+ * unless the number of bands changes.
+ */
+class EqOverrideChannel {
+
+    private float[] mSlot = new float[0];
+    private boolean mPending = false;
+
+    // metrics
+    private long mPublished = 0;
+    private long mDropped = 0;
+    private long mConsumed = 0;
+
+    /**
+     * Replace the contents of the slot with the given levels.
+     *
+     * @return true if the slot was empty, meaning the consumer has to be scheduled
+     */
+    synchronized boolean publish(float[] levels) {
+        if (mSlot.length != levels.length) {
+            mSlot = new float[levels.length];
+        }
+        System.arraycopy(levels, 0, mSlot, 0, levels.length);
+        mPublished++;
+
+        if (mPending) {
+            mDropped++;
+            return false;
+        }
+        mPending = true;
+        return true;
+    }
+
+    synchronized boolean isPending() {
+        return mPending;
+    }
+
+    /**
+     * Take the latest vector out of the slot.
+     *
+     * @param dst buffer to copy the levels into, reused when it has the right size
+     * @return the buffer holding the levels, or null if nothing was pending
+     */
+    synchronized float[] consume(float[] dst) {
+        if (!mPending) {
+            return null;
+        }
+        if (dst == null || dst.length != mSlot.length) {
+            dst = new float[mSlot.length];
+        }
+        System.arraycopy(mSlot, 0, dst, 0, mSlot.length);
+        mPending = false;
+        mConsumed++;
+        return dst;
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "EqOverrideChannel published: " + mPublished
+                + " dropped: " + mDropped + " applied: " + mConsumed);
+    }
+}
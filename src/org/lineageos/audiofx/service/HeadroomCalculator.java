@@ -0,0 +1,111 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.service;
+
+import android.util.SparseArray;
+
+import org.lineageos.audiofx.backends.EffectSet;
+import org.lineageos.audiofx.eq.FrequencyResponse;
+
+import java.io.PrintWriter;
+
+/**
+ * Works out how far to turn the signal down so that equalizer boosts don't clip: the negative
+ * of the peak of the combined band response.
+ * <p>
+ * There is one response model per backend brand, shared by all sessions of that brand. The
+ * center frequencies are only read from an EffectSet the first time a brand (or a new band
+ * count for it) is seen, so asking again for the same curve (every session in a batch, or the
+ * next drag frame with one band moved) costs no audioserver calls.
+ */
+class HeadroomCalculator {
+
+    private static final int POINTS = 128;
+    private static final int SAMPLE_RATE = 48000;
+    private static final float MIN_FREQUENCY = 20f;
+    private static final float MAX_FREQUENCY = 20000f;
+
+    private static final class Model {
+        final FrequencyResponse mResponse;
+        final float[] mLevels;
+
+        Model(int[] centers) {
+            mResponse = new FrequencyResponse(centers, MIN_FREQUENCY, MAX_FREQUENCY, POINTS,
+                    SAMPLE_RATE);
+            mLevels = new float[centers.length];
+        }
+    }
+
+    // by backend brand
+    private final SparseArray<Model> mModels = new SparseArray<>();
+    private Model mModel;
+
+    // metrics
+    private long mRequests = 0;
+    private float mLastGain = 0;
+    private float mMinGain = 0;
+
+    /**
+     * @param levels in millibels
+     * @return pre-gain in decibels, zero or negative
+     */
+    synchronized float getPreGain(EffectSet effects, short[] levels) {
+        final float[] dB = prepare(effects, levels.length);
+        for (int i = 0; i < dB.length; i++) {
+            dB[i] = i < levels.length ? levels[i] / 100f : 0f;
+        }
+        return compute(dB);
+    }
+
+    /**
+     * @param levels in decibels
+     * @return pre-gain in decibels, zero or negative
+     */
+    synchronized float getPreGain(EffectSet effects, float[] levels) {
+        final float[] dB = prepare(effects, levels.length);
+        for (int i = 0; i < dB.length; i++) {
+            dB[i] = i < levels.length ? levels[i] : 0f;
+        }
+        return compute(dB);
+    }
+
+    private float[] prepare(EffectSet effects, int n) {
+        final int brand = effects.getBrand();
+        final int bands = effects.getNumEqualizerBands();
+        Model model = mModels.get(brand);
+        if (model == null || model.mLevels.length != bands) {
+            // backends place their bands differently, probe this one's layout once
+            final int[] centers = new int[bands];
+            for (short i = 0; i < bands; i++) {
+                centers[i] = effects.getCenterFrequency(i);
+            }
+            model = new Model(centers);
+            mModels.put(brand, model);
+        }
+        mModel = model;
+        return model.mLevels;
+    }
+
+    private float compute(float[] levels) {
+        mModel.mResponse.compute(levels);
+        final float gain = -Math.max(0f, mModel.mResponse.getPeak());
+        mRequests++;
+        mLastGain = gain;
+        mMinGain = Math.min(mMinGain, gain);
+        return gain;
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix + "HeadroomCalculator (");
+        for (int i = 0; i < mModels.size(); i++) {
+            pw.print((i > 0 ? ", " : "") + "brand " + mModels.keyAt(i) + ": "
+                    + mModels.valueAt(i).mLevels.length + " bands");
+        }
+        pw.println(")");
+        pw.println(prefix + "  requests: " + mRequests + " last pre-gain: " + mLastGain
+                + "dB lowest: " + mMinGain + "dB");
+    }
+}
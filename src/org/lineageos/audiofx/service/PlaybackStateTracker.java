@@ -0,0 +1,210 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.service;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.media.AudioPlaybackConfiguration;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.SparseLongArray;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Keeps track of which audio sessions are currently playing, based on the playback
+ * configurations reported by AudioManager.
+ * <p>
+ * Reads are lock-free and may happen from any thread, except for the inactivity timestamps
+ * which belong to the handler thread.
+ */
+class PlaybackStateTracker extends AudioManager.AudioPlaybackCallback {
+
+    private static final String TAG = AudioFxService.TAG;
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private final AudioManager mAudioManager;
+    private final Handler mHandler;
+
+    /**
+     * Sorted ids of the sessions which are currently playing. Replaced, never modified.
+     */
+    private volatile int[] mActiveSessions = new int[0];
+
+    /**
+     * When each session we saw playing last stopped. Handler thread only.
+     */
+    private final SparseLongArray mStoppedAt = new SparseLongArray();
+    private int[] mStarted = new int[0];
+
+    /**
+     * Sorted ids of every session with a player, in any state but released. Handler thread
+     * only.
+     */
+    private int[] mPresent = new int[0];
+    private int[] mGone = new int[0];
+
+    private Listener mListener;
+
+    interface Listener {
+        /**
+         * Sessions started playing. Called on the handler thread.
+         *
+         * @param sessionIds the first count entries are valid
+         */
+        void onSessionsStarted(int[] sessionIds, int count);
+
+        /**
+         * At least one session stopped playing. Called on the handler thread.
+         */
+        void onSessionsStopped();
+
+        /**
+         * A media player showed up on a session we had not seen yet. Called on the handler
+         * thread.
+         *
+         * @param uid of the client owning the player
+         */
+        void onSessionAppeared(int sessionId, int uid);
+
+        /**
+         * The last player of these sessions was released. Called on the handler thread.
+         *
+         * @param sessionIds the first count entries are valid
+         */
+        void onSessionsGone(int[] sessionIds, int count);
+    }
+
+    PlaybackStateTracker(Context context, Handler handler) {
+        mAudioManager = context.getSystemService(AudioManager.class);
+        mHandler = handler;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    void start() {
+        mAudioManager.registerAudioPlaybackCallback(this, mHandler);
+        // the state and the listener are handler thread only, so is the initial snapshot
+        mHandler.post(() -> onPlaybackConfigChanged(
+                mAudioManager.getActivePlaybackConfigurations()));
+    }
+
+    void stop() {
+        mAudioManager.unregisterAudioPlaybackCallback(this);
+    }
+
+    boolean isSessionActive(int sessionId) {
+        return Arrays.binarySearch(mActiveSessions, sessionId) >= 0;
+    }
+
+    /**
+     * Handler thread only.
+     *
+     * @return -1 if the session is playing, otherwise when it last stopped, or 0 if we never
+     * saw it playing
+     */
+    long getInactiveSince(int sessionId) {
+        if (isSessionActive(sessionId)) {
+            return -1;
+        }
+        return mStoppedAt.get(sessionId, 0);
+    }
+
+    /**
+     * Drop the timestamp of a session which is gone. Handler thread only.
+     */
+    void forget(int sessionId) {
+        mStoppedAt.delete(sessionId);
+    }
+
+    @Override
+    public void onPlaybackConfigChanged(List<AudioPlaybackConfiguration> configs) {
+        int[] active = new int[configs.size()];
+        int[] present = new int[configs.size()];
+        int n = 0;
+        int p = 0;
+        for (AudioPlaybackConfiguration config : configs) {
+            final int state = config.getPlayerState();
+            if (config.getSessionId() <= 0
+                    || state == AudioPlaybackConfiguration.PLAYER_STATE_RELEASED) {
+                continue;
+            }
+            present[p++] = config.getSessionId();
+            if (state == AudioPlaybackConfiguration.PLAYER_STATE_STARTED) {
+                active[n++] = config.getSessionId();
+            }
+        }
+        active = Arrays.copyOf(active, n);
+        Arrays.sort(active);
+        present = Arrays.copyOf(present, p);
+        Arrays.sort(present);
+        final int[] previous = mActiveSessions;
+        mActiveSessions = active;
+
+        final long now = SystemClock.uptimeMillis();
+        boolean stopped = false;
+        for (int sessionId : previous) {
+            if (Arrays.binarySearch(active, sessionId) < 0) {
+                mStoppedAt.put(sessionId, now);
+                stopped = true;
+            }
+        }
+        if (mStarted.length < active.length) {
+            mStarted = new int[active.length];
+        }
+        int started = 0;
+        for (int sessionId : active) {
+            if (Arrays.binarySearch(previous, sessionId) < 0) {
+                mStoppedAt.delete(sessionId);
+                mStarted[started++] = sessionId;
+            }
+        }
+
+        final Listener listener = mListener;
+        if (listener != null) {
+            for (AudioPlaybackConfiguration config : configs) {
+                final int sessionId = config.getSessionId();
+                if (sessionId > 0 && Arrays.binarySearch(present, sessionId) >= 0
+                        && Arrays.binarySearch(mPresent, sessionId) < 0 && isMedia(config)) {
+                    listener.onSessionAppeared(sessionId, config.getClientUid());
+                }
+            }
+            if (mGone.length < mPresent.length) {
+                mGone = new int[mPresent.length];
+            }
+            int gone = 0;
+            for (int sessionId : mPresent) {
+                if (Arrays.binarySearch(present, sessionId) < 0) {
+                    mGone[gone++] = sessionId;
+                }
+            }
+            if (gone > 0) {
+                listener.onSessionsGone(mGone, gone);
+            }
+
+            if (started > 0) {
+                listener.onSessionsStarted(mStarted, started);
+            }
+            if (stopped) {
+                listener.onSessionsStopped();
+            }
+        }
+
+        mPresent = present;
+
+        if (DEBUG) Log.d(TAG, "playing sessions: " + Arrays.toString(active));
+    }
+
+    private static boolean isMedia(AudioPlaybackConfiguration config) {
+        final AudioAttributes attributes = config.getAudioAttributes();
+        return attributes != null && attributes.getUsage() == AudioAttributes.USAGE_MEDIA;
+    }
+}
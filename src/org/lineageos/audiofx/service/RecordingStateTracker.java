@@ -0,0 +1,89 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.service;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.AudioRecordingConfiguration;
+import android.media.MediaRecorder;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps track of whether anything is recording from a source we must not interfere with,
+ * based on the recording configurations reported by AudioManager. This replaces asking audio
+ * policy every time a session shows up.
+ * <p>
+ * Reads are lock-free and may happen from any thread.
+ */
+class RecordingStateTracker extends AudioManager.AudioRecordingCallback {
+
+    private static final String TAG = AudioFxService.TAG;
+    private static final boolean DEBUG = Log.isLoggable(TAG, Log.DEBUG);
+
+    private final AudioManager mAudioManager;
+    private final Handler mHandler;
+    private final AtomicBoolean mRecording = new AtomicBoolean();
+
+    private Listener mListener;
+
+    interface Listener {
+        /**
+         * The last recording stopped. Called on the handler thread, after
+         * {@link #isRecording()} went false.
+         */
+        void onRecordingStopped();
+    }
+
+    RecordingStateTracker(Context context, Handler handler) {
+        mAudioManager = context.getSystemService(AudioManager.class);
+        mHandler = handler;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    void start() {
+        mAudioManager.registerAudioRecordingCallback(this, mHandler);
+        // read the initial state on the handler too, in order with the callbacks
+        mHandler.post(() -> onRecordingConfigChanged(
+                mAudioManager.getActiveRecordingConfigurations()));
+    }
+
+    void stop() {
+        mAudioManager.unregisterAudioRecordingCallback(this);
+    }
+
+    boolean isRecording() {
+        return mRecording.get();
+    }
+
+    @Override
+    public void onRecordingConfigChanged(List<AudioRecordingConfiguration> configs) {
+        boolean recording = false;
+        for (AudioRecordingConfiguration config : configs) {
+            final int source = config.getClientAudioSource();
+            // loopback and voice capture, the same sources we used to poll
+            if (source == MediaRecorder.AudioSource.DEFAULT
+                    || source == MediaRecorder.AudioSource.VOICE_RECOGNITION) {
+                recording = true;
+                break;
+            }
+        }
+
+        if (mRecording.getAndSet(recording) && !recording) {
+            if (DEBUG) Log.d(TAG, "recording stopped");
+            final Listener listener = mListener;
+            if (listener != null) {
+                listener.onRecordingStopped();
+            }
+        }
+    }
+}
@@ -6,35 +6,35 @@
 
 package org.lineageos.audiofx.service;
 
-import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_BASS_ENABLE;
-import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_BASS_STRENGTH;
-import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_EQ_PRESET_LEVELS;
-import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_GLOBAL_ENABLE;
-import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_REVERB_PRESET;
-import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_VIRTUALIZER_ENABLE;
-import static org.lineageos.audiofx.Constants.DEVICE_AUDIOFX_VIRTUALIZER_STRENGTH;
-import static org.lineageos.audiofx.Constants.DEVICE_DEFAULT_GLOBAL_ENABLE;
 import static org.lineageos.audiofx.activity.MasterConfigControl.getDeviceIdentifierString;
 import static org.lineageos.audiofx.service.AudioFxService.ALL_CHANGED;
 import static org.lineageos.audiofx.service.AudioFxService.BASS_BOOST_CHANGED;
 import static org.lineageos.audiofx.service.AudioFxService.EQ_CHANGED;
 import static org.lineageos.audiofx.service.AudioFxService.REVERB_CHANGED;
 import static org.lineageos.audiofx.service.AudioFxService.VIRTUALIZER_CHANGED;
+import static org.lineageos.audiofx.service.AudioFxService.VOLUME_BOOST_CHANGED;
 
 import android.content.Context;
-import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
 import android.media.AudioDeviceInfo;
-import android.media.AudioSystem;
-import android.media.audiofx.PresetReverb;
+import android.media.AudioManager;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.SparseArray;
 
+import org.lineageos.audiofx.DeviceProfile;
+import org.lineageos.audiofx.R;
 import org.lineageos.audiofx.backends.EffectSet;
 import org.lineageos.audiofx.backends.EffectsFactory;
-import org.lineageos.audiofx.eq.EqUtils;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 class SessionManager implements AudioOutputChangeListener.AudioOutputChangedCallback {
 
@@ -46,19 +46,111 @@ class SessionManager implements AudioOutputChangeListener.AudioOutputChangedCall
     private final DevicePreferenceManager mDevicePrefs;
 
     /**
-     * All fields ending with L should be locked on {@link #mAudioSessionsL}
+     * Known sessions, copy-on-write. Readers use whatever snapshot is current without locking;
+     * writers publish a modified copy while holding {@link #mRegistryLock}, which never covers
+     * any effect I/O. Effects are created, updated and released on the backend thread only.
+     */
+    private volatile SparseArray<AudioSession> mSessions = new SparseArray<AudioSession>();
+    private final Object mRegistryLock = new Object();
+
+    private final PlaybackStateTracker mPlaybackState;
+    private final RecordingStateTracker mRecordingState;
+
+    /**
+     * Sessions announced while something was recording. They stay pending until recording
+     * stops. Guarded by {@link #mRegistryLock}.
+     */
+    private final ArrayList<AudioSession> mDeferred = new ArrayList<>();
+    private long mDeferredTotal = 0;
+    private final UpdateScheduler mScheduler;
+    private final DeviceSwitcher mDeviceSwitcher;
+    private final EffectSetPool mPool;
+    private final long mEffectIdleMs;
+    private final long mSuspendIdleMs;
+    private final EqOverrideChannel mEqOverride = new EqOverrideChannel();
+    private final HeadroomCalculator mHeadroom = new HeadroomCalculator();
+    private final ControlRecovery mControlRecovery = new ControlRecovery();
+
+    private final EffectSet.ControlListener mControlListener = this::onControlRegained;
+
+    // backend thread copy of the latest eq override vector
+    private float[] mEqOverrideLevels;
+
+    private volatile AudioDeviceInfo mCurrentDevice = null;
+
+    /**
+     * Global output-mix mode: a single EffectSet on session 0 processes everything and
+     * per-session effects are not created. Only touched from the backend thread.
+     */
+    private static final int GLOBAL_MIX_SESSION = 0;
+    private final boolean mGlobalMixSupported;
+    private boolean mGlobalMixFailed = false;
+    private volatile EffectSet mGlobalEffects;
+
+    // output mode metrics
+    private long mModeSince = SystemClock.uptimeMillis();
+    private long mGlobalMixTime = 0;
+    private long mPerSessionTime = 0;
+    private long mGlobalSetsCreated = 0;
+    private long mPerSessionSetsCreated = 0;
+    private long mSessionsSeenGlobal = 0;
+    private long mSessionsSeenPerSession = 0;
+
+    /**
+     * Every native effect dies with audioserver, rebuild them all once it is back
+     */
+    private final AudioManager mAudioManager;
+    private final AudioManager.AudioServerStateCallback mServerStateCallback =
+            new AudioManager.AudioServerStateCallback() {
+                @Override
+                public void onAudioServerDown() {
+                    mHandler.post(SessionManager.this::onServerDown);
+                }
+
+                @Override
+                public void onAudioServerUp() {
+                    mHandler.post(SessionManager.this::rebuildAll);
+                }
+            };
+
+    // audioserver restart metrics
+    private long mServerDownSince = 0;
+    private long mServerRestarts = 0;
+    private long mLastRebuildMs = 0;
+    private long mLastRestoreMs = 0;
+    private long mMaxRestoreMs = 0;
+    private int mLastRebuildSessions = 0;
+
+    /**
+     * Attach sessions as soon as a media player shows up on them, without waiting for the
+     * client's broadcast to make it through to us
      */
-    private final SparseArray<EffectSet> mAudioSessionsL = new SparseArray<EffectSet>();
+    private final boolean mDiscoverSessions;
 
+    // discovery metrics, per AudioSession.SOURCE_*
+    private final AtomicLongArray mDuplicates = new AtomicLongArray(AudioSession.SOURCES);
+    private final long[] mAttached = new long[AudioSession.SOURCES];
+    private final long[] mAttachLatencyTotal = new long[AudioSession.SOURCES];
+    private final long[] mAttachLatencyMax = new long[AudioSession.SOURCES];
 
-    private AudioDeviceInfo mCurrentDevice = null;
+    // suspension metrics
+    private long mSuspensions = 0;
+    private long mResumes = 0;
+    private int mLastResumeBatch = 0;
+    private long mLastResumeMs = 0;
 
     // audio priority handler messages
     private static final int MSG_UPDATE_DSP = 100;
     private static final int MSG_ADD_SESSION = 101;
     private static final int MSG_REMOVE_SESSION = 102;
-    private static final int MSG_UPDATE_FOR_SESSION = 103;
-    private static final int MSG_UPDATE_EQ_OVERRIDE = 104;
+    private static final int MSG_EXPIRE_POOL = 103;
+    private static final int MSG_EVICT_POOL = 104;
+    private static final int MSG_TRIM_EFFECTS = 105;
+    private static final int MSG_RESTORE_CONTROL = 106;
+    private static final int MSG_SUSPEND_IDLE = 107;
+
+    // how long dump() waits for the backend thread
+    private static final long DUMP_TIMEOUT_MS = 1000;
 
     public SessionManager(Context context, Handler handler, DevicePreferenceManager devicePrefs,
             AudioDeviceInfo outputDevice) {
@@ -66,59 +158,242 @@ class SessionManager implements AudioOutputChangeListener.AudioOutputChangedCall
         mDevicePrefs = devicePrefs;
         mCurrentDevice = outputDevice;
         mHandler = new Handler(handler.getLooper(), new AudioServiceHandler());
+
+        mPlaybackState = new PlaybackStateTracker(context, mHandler);
+        mPlaybackState.setListener(new PlaybackStateTracker.Listener() {
+            @Override
+            public void onSessionsStarted(int[] sessionIds, int count) {
+                resumeSessions(sessionIds, count);
+            }
+
+            @Override
+            public void onSessionsStopped() {
+                scheduleSuspend();
+            }
+
+            @Override
+            public void onSessionAppeared(int sessionId, int uid) {
+                if (mDiscoverSessions) {
+                    final PackageManager pm = mContext.getPackageManager();
+                    addSession(sessionId, pm.getNameForUid(uid), uid,
+                            AudioSession.SOURCE_PLAYBACK, SystemClock.uptimeMillis());
+                }
+            }
+
+            @Override
+            public void onSessionsGone(int[] sessionIds, int count) {
+                for (int i = 0; i < count; i++) {
+                    final AudioSession session = mSessions.get(sessionIds[i]);
+                    // announced sessions are closed by their client
+                    if (session != null
+                            && session.getSource() == AudioSession.SOURCE_PLAYBACK) {
+                        removeSession(sessionIds[i]);
+                    }
+                }
+            }
+        });
+        mRecordingState = new RecordingStateTracker(context, mHandler);
+        mRecordingState.setListener(this::attachDeferred);
+        mScheduler = new UpdateScheduler(mPlaybackState);
+        mDeviceSwitcher = new DeviceSwitcher(mPlaybackState);
+        mPool = new EffectSetPool(
+                context.getResources().getInteger(R.integer.config_effectPoolSize),
+                context.getResources().getInteger(R.integer.config_effectPoolTtlMs));
+        mEffectIdleMs = context.getResources().getInteger(R.integer.config_effectIdleReleaseMs);
+        mSuspendIdleMs = context.getResources().getInteger(R.integer.config_suspendIdleMs);
+        mDiscoverSessions = context.getResources().getBoolean(
+                R.bool.config_discoverPlaybackSessions);
+        mGlobalMixSupported = context.getResources().getBoolean(R.bool.config_globalMixSupported);
+        mHandler.post(this::syncOutputMode);
+
+        mAudioManager = context.getSystemService(AudioManager.class);
+        mAudioManager.setAudioServerStateCallback(mHandler::post, mServerStateCallback);
+
+        // picks up whatever is already playing, so everything above must be ready
+        mRecordingState.start();
+        mPlaybackState.start();
     }
 
     public void onDestroy() {
-        synchronized (mAudioSessionsL) {
-            mHandler.removeCallbacksAndMessages(null);
-            mHandler.getLooper().quit();
+        mAudioManager.clearAudioServerStateCallback();
+        mPlaybackState.stop();
+        mRecordingState.stop();
+        mDeviceSwitcher.shutdown();
+        mHandler.removeCallbacksAndMessages(null);
+        mHandler.getLooper().quit();
+        mPool.evictAll();
+        final EffectSet global = mGlobalEffects;
+        mGlobalEffects = null;
+        if (global != null) {
+            global.release();
         }
     }
 
+    /**
+     * Drop every warm EffectSet, we are being asked to give memory back.
+     */
+    public void onTrimMemory() {
+        mHandler.sendEmptyMessage(MSG_EVICT_POOL);
+    }
+
     public void update(int flags) {
         if (mHandler == null) {
             return;
         }
-        synchronized (mAudioSessionsL) {
-            mHandler.obtainMessage(MSG_UPDATE_DSP, flags, 0).sendToTarget();
+        if (DEBUG) Log.i(TAG, "Updating to configuration: " + getCurrentDeviceIdentifier());
+
+        // the scheduler is only touched from the backend thread
+        mHandler.post(() -> {
+            syncOutputMode();
+            if (mGlobalEffects != null) {
+                mScheduler.mark(GLOBAL_MIX_SESSION, flags);
+            } else {
+                final SparseArray<AudioSession> sessions = mSessions;
+                final int N = sessions.size();
+                for (int i = 0; i < N; i++) {
+                    mScheduler.mark(sessions.keyAt(i), flags);
+                }
+            }
+            scheduleDrain();
+        });
+    }
+
+    /**
+     * Make sure a drain tick is queued if any session has pending updates. Ticks are spaced at
+     * least {@link UpdateScheduler#TICK_MS} apart so that bursts of updates get merged.
+     */
+    private void scheduleDrain() {
+        if ((mScheduler.hasPending() || mEqOverride.isPending())
+                && !mHandler.hasMessages(MSG_UPDATE_DSP)) {
+            mHandler.sendEmptyMessageDelayed(MSG_UPDATE_DSP, mScheduler.getTickDelay());
         }
     }
 
-    public void setOverrideLevels(short band, float level) {
-        synchronized (mAudioSessionsL) {
-            mHandler.obtainMessage(MSG_UPDATE_EQ_OVERRIDE, band, 0, level).sendToTarget();
+    /**
+     * Temporarily apply a full set of band levels to every session, e.g. while the UI animates
+     * between presets. Only the most recent vector is applied, once per drain tick.
+     *
+     * @param levels in decibels
+     */
+    public void setOverrideLevels(float[] levels) {
+        if (mEqOverride.publish(levels) && !mHandler.hasMessages(MSG_UPDATE_DSP)) {
+            // the scheduler itself belongs to the backend thread, only peek at its tick
+            mHandler.sendEmptyMessageDelayed(MSG_UPDATE_DSP, mScheduler.getTickDelay());
         }
     }
 
-    public void addSession(int stream) {
-        synchronized (mAudioSessionsL) {
-            // Never auto-attach is someone is recording! We don't want to interfere
-            // with any sort of loopback mechanisms.
-            final boolean recording = AudioSystem.isSourceActive(0) || AudioSystem.isSourceActive(
-                    6);
-            if (recording) {
-                Log.w(TAG, "Recording in progress, not performing auto-attach!");
-                return;
+    /**
+     * Announce a session which should get effects. Both discovery paths may announce the same
+     * session, whichever comes second is dropped.
+     *
+     * @param source      one of the AudioSession.SOURCE_* constants
+     * @param announcedAt uptime when the announcement was first seen, to measure attach latency
+     */
+    public void addSession(int stream, String packageName, int source, long announcedAt) {
+        if (stream <= 0) {
+            return;
+        }
+        addSession(stream, packageName, getUidForPackage(packageName), source, announcedAt);
+    }
+
+    /**
+     * @param uid owner of the session, which keys the warm pool. Playback discovery only knows
+     * the uid, and its package name doesn't always match what the broadcast names.
+     */
+    private void addSession(int stream, String packageName, int uid, int source,
+            long announcedAt) {
+        if (stream <= 0) {
+            return;
+        }
+        synchronized (mRegistryLock) {
+            AudioSession session = mSessions.get(stream);
+            if (session != null) {
+                if (source == AudioSession.SOURCE_BROADCAST) {
+                    session.setSource(source);
+                }
+
+                // the client came back before we got around to releasing it. done under the
+                // lock, so that a concurrent release either loses the race or has finished
+                // moving the session to RELEASED by the time we look at it.
+                if (session.transition(AudioSession.State.RELEASING,
+                        AudioSession.State.PENDING)) {
+                    session.setAnnouncedAt(announcedAt);
+                    mHandler.removeMessages(MSG_REMOVE_SESSION, session);
+                    queueAttach(session);
+                    if (DEBUG) Log.i(TAG, "Audio session revived: " + stream);
+                    return;
+                }
+                if (session.getState() != AudioSession.State.RELEASED) {
+                    mDuplicates.incrementAndGet(source);
+                    return;
+                }
+                // released already, start over with a fresh record
             }
-            if (!mHandler.hasMessages(MSG_ADD_SESSION, stream)) {
-                mHandler.removeMessages(MSG_REMOVE_SESSION, stream);
-                mHandler.obtainMessage(MSG_ADD_SESSION, stream).sendToTarget();
-                if (DEBUG) Log.i(TAG, "New audio session: " + stream);
+
+            session = new AudioSession(stream, packageName, uid, source, announcedAt);
+            final SparseArray<AudioSession> sessions = mSessions.clone();
+            sessions.put(stream, session);
+            mSessions = sessions;
+            queueAttach(session);
+            if (DEBUG) Log.i(TAG, "New audio session: " + stream);
+        }
+    }
+
+    /**
+     * Hand a PENDING session to the backend thread, or hold it back until recording stops.
+     * Caller holds mRegistryLock.
+     */
+    private void queueAttach(AudioSession session) {
+        // Never auto-attach while someone is recording! We don't want to interfere
+        // with any sort of loopback mechanisms. Checked under the lock so that we
+        // can't miss the end of the recording.
+        if (mRecordingState.isRecording()) {
+            Log.w(TAG, "Recording in progress, deferring attach of " + session.mSessionId);
+            if (!mDeferred.contains(session)) {
+                mDeferred.add(session);
+                mDeferredTotal++;
             }
+            return;
+        }
+        mHandler.obtainMessage(MSG_ADD_SESSION, session).sendToTarget();
+    }
+
+    private int getUidForPackage(String packageName) {
+        try {
+            return mContext.getPackageManager().getPackageUid(packageName, 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.w(TAG, "Unknown package " + packageName + " announced a session");
+            return Process.INVALID_UID;
         }
     }
 
     public void removeSession(int stream) {
-        synchronized (mAudioSessionsL) {
-            if (!mHandler.hasMessages(MSG_REMOVE_SESSION, stream)) {
-                final EffectSet effects = mAudioSessionsL.get(stream);
-                if (effects != null) {
-                    effects.setMarkedForDeath(true);
-                    mHandler.sendMessageDelayed(
-                            mHandler.obtainMessage(MSG_REMOVE_SESSION, stream),
-                            effects.getReleaseDelay());
-                    if (DEBUG) Log.i(TAG, "Audio session queued for removal: " + stream);
-                }
+        final AudioSession session = mSessions.get(stream);
+        if (session == null) {
+            return;
+        }
+        if (session.transition(AudioSession.State.ATTACHED, AudioSession.State.RELEASING)) {
+            final EffectSet effects = session.getEffects();
+            mHandler.sendMessageDelayed(
+                    mHandler.obtainMessage(MSG_REMOVE_SESSION, session),
+                    effects != null ? effects.getReleaseDelay() : 0);
+            if (DEBUG) Log.i(TAG, "Audio session queued for removal: " + stream);
+        } else if (session.transition(AudioSession.State.PENDING,
+                AudioSession.State.RELEASING)) {
+            mHandler.obtainMessage(MSG_REMOVE_SESSION, session).sendToTarget();
+            if (DEBUG) Log.i(TAG, "Pending audio session queued for removal: " + stream);
+        }
+    }
+
+    /**
+     * Drop a released session from the registry, unless it has been replaced already.
+     */
+    private void unregisterSession(AudioSession session) {
+        synchronized (mRegistryLock) {
+            if (mSessions.get(session.mSessionId) == session) {
+                final SparseArray<AudioSession> sessions = mSessions.clone();
+                sessions.remove(session.mSessionId);
+                mSessions = sessions;
             }
         }
     }
@@ -128,28 +403,98 @@ class SessionManager implements AudioOutputChangeListener.AudioOutputChangedCall
     }
 
     public boolean hasActiveSessions() {
-        synchronized (mAudioSessionsL) {
-            return mAudioSessionsL.size() > 0;
-        }
+        return mSessions.size() > 0;
     }
 
+    /**
+     * @return the effects processing this session, which is the output mix effect set for every
+     * session while global mode is active
+     */
     EffectSet getEffectForSession(int sessionId) {
-        synchronized (mAudioSessionsL) {
-            return mAudioSessionsL.get(sessionId);
+        final EffectSet global = mGlobalEffects;
+        if (sessionId == GLOBAL_MIX_SESSION) {
+            return global;
+        }
+        final AudioSession session = mSessions.get(sessionId);
+        if (session == null) {
+            return null;
         }
+        final EffectSet effects = session.getEffects();
+        return effects != null ? effects : global;
+    }
+
+    /**
+     * Most of the state and metrics are backend thread only, so they are rendered there and
+     * printed from the caller's thread.
+     */
+    void dump(PrintWriter pw, String prefix) {
+        final StringWriter out = new StringWriter();
+        final PrintWriter snapshot = new PrintWriter(out);
+        if (!mHandler.runWithScissors(() -> dumpOnBackend(snapshot, prefix), DUMP_TIMEOUT_MS)) {
+            pw.println(prefix + "SessionManager: backend thread busy for " + DUMP_TIMEOUT_MS
+                    + "ms, not dumped");
+            return;
+        }
+        snapshot.flush();
+        pw.print(out);
+    }
+
+    /**
+     * Backend thread only.
+     */
+    private void dumpOnBackend(PrintWriter pw, String prefix) {
+        final SparseArray<AudioSession> sessions = mSessions;
+        pw.println(prefix + "SessionManager (" + sessions.size() + " sessions)");
+        long sent = 0, suppressed = 0, lost = 0, regained = 0;
+        for (int i = 0; i < sessions.size(); i++) {
+            final AudioSession session = sessions.valueAt(i);
+            final EffectSet effects = session.getEffects();
+            if (effects != null) {
+                sent += effects.getWritesSent();
+                suppressed += effects.getWritesSuppressed();
+                lost += effects.getControlLostCount();
+                regained += effects.getControlRegainedCount();
+            }
+            pw.println(prefix + "  " + session);
+        }
+        final EffectSet global = mGlobalEffects;
+        if (global != null) {
+            sent += global.getWritesSent();
+            suppressed += global.getWritesSuppressed();
+            lost += global.getControlLostCount();
+            regained += global.getControlRegainedCount();
+            pw.println(prefix + "  global mix: " + global);
+        }
+        pw.println(prefix + "  writes sent: " + sent + " suppressed: " + suppressed);
+        pw.println(prefix + "  control lost: " + lost + " regained: " + regained);
+        dumpOutputMode(pw, prefix + "  ", global != null);
+        dumpDiscovery(pw, prefix + "  ");
+        mScheduler.dump(pw, prefix + "  ");
+        mDeviceSwitcher.dump(pw, prefix + "  ");
+        mPool.dump(pw, prefix + "  ");
+        mEqOverride.dump(pw, prefix + "  ");
+        mHeadroom.dump(pw, prefix + "  ");
+        mControlRecovery.dump(pw, prefix + "  ");
+        pw.println(prefix + "  suspended: " + mSuspensions + " resumed: " + mResumes
+                + ", last resume: " + mLastResumeBatch + " sessions in " + mLastResumeMs + "ms");
+        pw.println(prefix + "  audioserver restarts: " + mServerRestarts
+                + ", last rebuild: " + mLastRebuildSessions + " sessions in "
+                + mLastRebuildMs + "ms, down to restored: " + mLastRestoreMs
+                + "ms (max " + mMaxRestoreMs + "ms)");
     }
 
     /**
      * Update the backend with our changed preferences.
      * <p>
-     * This must only be called from the HandlerThread!
+     * This must only be called from the HandlerThread, or from a {@link DeviceSwitcher} worker
+     * while the HandlerThread waits for it!
      */
-    private void updateBackendLocked(int flags, EffectSet session) {
+    private void updateBackend(int flags, EffectSet session) {
         if (Looper.getMainLooper().equals(Looper.myLooper())) {
             throw new IllegalStateException("updateBackend must not be called on the UI thread!");
         }
 
-        final SharedPreferences prefs = mDevicePrefs.getCurrentDevicePrefs();
+        final DeviceProfile profile = mDevicePrefs.getCurrentDeviceProfile();
 
         if (DEBUG) {
             Log.i(TAG, "+++ updateBackend() called with flags=[" + flags + "], session=[" + session
@@ -160,8 +505,7 @@ class SessionManager implements AudioOutputChangeListener.AudioOutputChangedCall
             return;
         }
 
-        final boolean globalEnabled = prefs.getBoolean(DEVICE_AUDIOFX_GLOBAL_ENABLE,
-                DEVICE_DEFAULT_GLOBAL_ENABLE);
+        final boolean globalEnabled = profile.isGlobalEnabled();
 
         if ((flags & ALL_CHANGED) > 0) {
             // global bypass toggle
@@ -180,11 +524,13 @@ class SessionManager implements AudioOutputChangeListener.AudioOutputChangedCall
                 if ((flags & EQ_CHANGED) > 0) {
                     // equalizer is always on unless bypassed
                     session.enableEqualizer(true);
-                    String savedPreset = prefs.getString(DEVICE_AUDIOFX_EQ_PRESET_LEVELS, null);
-                    if (savedPreset != null) {
-                        session.setEqualizerLevelsDecibels(
-                                EqUtils.stringBandsToFloats(savedPreset));
+                    final short[] levels = profile.getEqLevels();
+                    if (levels != null) {
+                        session.setEqualizerLevelsMillibels(levels);
                     }
+                    // staged with the levels, so the backend can order them to avoid clipping
+                    session.setPreGain(levels != null
+                            ? mHeadroom.getPreGain(session, levels) : 0f);
                 }
             } catch (Exception e) {
                 Log.e(TAG, "Error enabling equalizer!", e);
@@ -193,10 +539,8 @@ class SessionManager implements AudioOutputChangeListener.AudioOutputChangedCall
             // bass
             try {
                 if ((flags & BASS_BOOST_CHANGED) > 0 && session.hasBassBoost()) {
-                    boolean enable = prefs.getBoolean(DEVICE_AUDIOFX_BASS_ENABLE, false);
-                    session.enableBassBoost(enable);
-                    session.setBassBoostStrength(Short.valueOf(prefs
-                            .getString(DEVICE_AUDIOFX_BASS_STRENGTH, "0")));
+                    session.enableBassBoost(profile.isBassEnabled());
+                    session.setBassBoostStrength(profile.getBassStrength());
                 }
             } catch (Exception e) {
                 Log.e(TAG, "Error enabling bass boost!", e);
@@ -205,8 +549,7 @@ class SessionManager implements AudioOutputChangeListener.AudioOutputChangedCall
             // reverb
             try {
                 if ((flags & REVERB_CHANGED) > 0 && session.hasReverb()) {
-                    short preset = Short.decode(prefs.getString(DEVICE_AUDIOFX_REVERB_PRESET,
-                            String.valueOf(PresetReverb.PRESET_NONE)));
+                    final short preset = profile.getReverbPreset();
                     session.enableReverb(preset > 0);
                     session.setReverbPreset(preset);
                 }
@@ -217,15 +560,22 @@ class SessionManager implements AudioOutputChangeListener.AudioOutputChangedCall
             // virtualizer
             try {
                 if ((flags & VIRTUALIZER_CHANGED) > 0 && session.hasVirtualizer()) {
-                    boolean enable = prefs.getBoolean(DEVICE_AUDIOFX_VIRTUALIZER_ENABLE, false);
-                    session.enableVirtualizer(enable);
-                    session.setVirtualizerStrength(Short.valueOf(prefs.getString(
-                            DEVICE_AUDIOFX_VIRTUALIZER_STRENGTH, "0")));
+                    session.enableVirtualizer(profile.isVirtualizerEnabled());
+                    session.setVirtualizerStrength(profile.getVirtualizerStrength());
                 }
             } catch (Exception e) {
                 Log.e(TAG, "Error enabling virtualizer!");
             }
 
+            // volume boost
+            try {
+                if ((flags & VOLUME_BOOST_CHANGED) > 0 && session.hasVolumeBoost()) {
+                    session.setVolumeBoost(profile.getVolumeBoost());
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error setting volume boost!", e);
+            }
+
             // mic drop
             if (!session.commitUpdate()) {
                 Log.e(TAG, "session " + session + " failed to commitUpdate()");
@@ -237,116 +587,596 @@ class SessionManager implements AudioOutputChangeListener.AudioOutputChangedCall
         }
     }
 
+    /**
+     * Create effects for a pending session. Backend thread only.
+     */
+    private void attachSession(AudioSession session) {
+        if (session.getState() != AudioSession.State.PENDING) {
+            // removed again before we got to it
+            return;
+        }
+
+        if (mGlobalEffects != null) {
+            // the output mix already covers it
+            session.transition(AudioSession.State.PENDING, AudioSession.State.ATTACHED);
+            mSessionsSeenGlobal++;
+            recordAttachLatency(session);
+            return;
+        }
+
+        final EffectSet effects = createEffects(session);
+        if (effects == null) {
+            if (session.transition(AudioSession.State.PENDING, AudioSession.State.RELEASED)) {
+                unregisterSession(session);
+            }
+            return;
+        }
+
+        // if this fails the session is on its way out and a remove is already queued
+        session.transition(AudioSession.State.PENDING, AudioSession.State.ATTACHED);
+        session.setAttachedAt(SystemClock.uptimeMillis());
+        mSessionsSeenPerSession++;
+        updateBackend(ALL_CHANGED, effects);
+        recordAttachLatency(session);
+        scheduleTrim();
+        scheduleSuspend();
+    }
+
+    /**
+     * Recording stopped, attach every session which showed up in the meantime and is still
+     * around. Backend thread only.
+     */
+    private void attachDeferred() {
+        final ArrayList<AudioSession> deferred;
+        synchronized (mRegistryLock) {
+            if (mDeferred.isEmpty()) {
+                return;
+            }
+            deferred = new ArrayList<>(mDeferred);
+            mDeferred.clear();
+        }
+        Log.i(TAG, "Recording stopped, attaching " + deferred.size() + " deferred sessions");
+        for (int i = 0; i < deferred.size(); i++) {
+            // removed sessions have moved on from PENDING and are skipped
+            attachSession(deferred.get(i));
+        }
+    }
+
+    /**
+     * Account for the time from announcement to processed audio. Backend thread only.
+     */
+    private void recordAttachLatency(AudioSession session) {
+        final int source = session.getSource();
+        final long latency = SystemClock.uptimeMillis() - session.getAnnouncedAt();
+        mAttached[source]++;
+        mAttachLatencyTotal[source] += latency;
+        mAttachLatencyMax[source] = Math.max(mAttachLatencyMax[source], latency);
+        if (DEBUG) Log.d(TAG, "attached " + session + " after " + latency + "ms");
+    }
+
+    private void dumpDiscovery(PrintWriter pw, String prefix) {
+        pw.println(prefix + "session discovery"
+                + (mDiscoverSessions ? "" : " (playback discovery disabled)"));
+        synchronized (mRegistryLock) {
+            pw.println(prefix + "  recording: " + mRecordingState.isRecording() + ", "
+                    + mDeferred.size() + " deferred now, " + mDeferredTotal + " total");
+        }
+        final String[] names = {"broadcast", "playback"};
+        for (int i = 0; i < AudioSession.SOURCES; i++) {
+            pw.println(prefix + "  " + names[i] + ": " + mAttached[i] + " attached, avg "
+                    + (mAttached[i] > 0 ? mAttachLatencyTotal[i] / mAttached[i] : 0)
+                    + "ms, max " + mAttachLatencyMax[i] + "ms, "
+                    + mDuplicates.get(i) + " duplicates");
+        }
+    }
+
+    /**
+     * Get effects for a session, either revived from the pool or freshly created.
+     *
+     * @return the effects, or null if they could not be created
+     */
+    private EffectSet createEffects(AudioSession session) {
+        EffectSet effects = session.getEffects();
+        if (effects == null) {
+            effects = mPool.take(session.mSessionId, session.mUid);
+            if (effects != null) {
+                // parked in bypass, and the output may have changed since
+                effects.setDevice(mCurrentDevice);
+                session.setEffects(effects);
+                session.setSuspended(false);
+                if (DEBUG) Log.w(TAG, "revived warm EffectSet for " + session);
+            }
+        }
+        if (effects == null) {
+            try {
+                effects = new EffectsFactory()
+                        .createEffectSet(mContext, session.mSessionId, mCurrentDevice);
+            } catch (Exception e) {
+                Log.e(TAG, "couldn't create effects for session id: " + session.mSessionId, e);
+                return null;
+            }
+            mPerSessionSetsCreated++;
+            effects.setControlListener(mControlListener);
+            session.setEffects(effects);
+            session.setSuspended(false);
+            if (DEBUG) Log.w(TAG, "added new EffectSet for sessionId=" + session.mSessionId);
+        }
+        return effects;
+    }
+
+    /**
+     * Switch between global output-mix mode and per-session mode if the current device profile
+     * asks for it. Backend thread only.
+     */
+    private void syncOutputMode() {
+        final boolean wantGlobal = mGlobalMixSupported && !mGlobalMixFailed
+                && mDevicePrefs.getCurrentDeviceProfile().isGlobalMixEnabled();
+        if (wantGlobal == (mGlobalEffects != null)) {
+            return;
+        }
+
+        final SparseArray<AudioSession> sessions = mSessions;
+        if (wantGlobal) {
+            final EffectSet global;
+            try {
+                global = new EffectsFactory()
+                        .createEffectSet(mContext, GLOBAL_MIX_SESSION, mCurrentDevice);
+            } catch (Exception e) {
+                // the HAL can't do it, don't try again for the lifetime of the service
+                Log.e(TAG, "couldn't attach effects to the output mix, staying per-session", e);
+                mGlobalMixFailed = true;
+                // sessions may have been left bare by a rebuild, don't leave them unprocessed
+                attachSessionEffects();
+                return;
+            }
+            accountModeTime(false);
+            mGlobalSetsCreated++;
+            global.setControlListener(mControlListener);
+            mGlobalEffects = global;
+            updateBackend(ALL_CHANGED, global);
+
+            // everything goes through the mix now, drop the per-session effects
+            for (int i = 0; i < sessions.size(); i++) {
+                final AudioSession session = sessions.valueAt(i);
+                final EffectSet effects = session.getEffects();
+                if (effects != null) {
+                    session.setEffects(null);
+                    mScheduler.remove(session.mSessionId);
+                    effects.release();
+                }
+            }
+            mPool.evictAll();
+            Log.i(TAG, "switched to global output-mix mode");
+        } else {
+            accountModeTime(true);
+            final EffectSet global = mGlobalEffects;
+            mGlobalEffects = null;
+            mScheduler.remove(GLOBAL_MIX_SESSION);
+            global.release();
+
+            // bring back effects for every session which is still around
+            attachSessionEffects();
+            Log.i(TAG, "switched to per-session mode");
+        }
+    }
+
+    /**
+     * Give every attached session without an EffectSet its own one, for when the output mix
+     * is not (or no longer) processing them. Backend thread only.
+     */
+    private void attachSessionEffects() {
+        final SparseArray<AudioSession> sessions = mSessions;
+        for (int i = 0; i < sessions.size(); i++) {
+            final AudioSession session = sessions.valueAt(i);
+            if (session.getState() == AudioSession.State.ATTACHED
+                    && session.getEffects() == null) {
+                final EffectSet effects = createEffects(session);
+                if (effects != null) {
+                    updateBackend(ALL_CHANGED, effects);
+                }
+            }
+        }
+        scheduleTrim();
+    }
+
+    private void accountModeTime(boolean wasGlobal) {
+        final long now = SystemClock.uptimeMillis();
+        if (wasGlobal) {
+            mGlobalMixTime += now - mModeSince;
+        } else {
+            mPerSessionTime += now - mModeSince;
+        }
+        mModeSince = now;
+    }
+
+    private void dumpOutputMode(PrintWriter pw, String prefix, boolean global) {
+        final long current = SystemClock.uptimeMillis() - mModeSince;
+        pw.println(prefix + "output mode: " + (global ? "global mix" : "per-session")
+                + (mGlobalMixSupported ? "" : " (global mix unsupported)")
+                + (mGlobalMixFailed ? " (global mix failed)" : ""));
+        pw.println(prefix + "  global mix: " + (mGlobalMixTime + (global ? current : 0))
+                + "ms, " + mGlobalSetsCreated + " effect sets for "
+                + mSessionsSeenGlobal + " sessions");
+        pw.println(prefix + "  per-session: " + (mPerSessionTime + (global ? 0 : current))
+                + "ms, " + mPerSessionSetsCreated + " effect sets for "
+                + mSessionsSeenPerSession + " sessions");
+    }
+
+    // called on whichever thread delivers effect events
+    private void onControlRegained(EffectSet effects) {
+        mHandler.post(() -> scheduleRestore(effects));
+    }
+
+    /**
+     * Another app let go of one of our effects, or toggled it. Re-apply that effect after a
+     * backoff delay. Backend thread only.
+     */
+    private void scheduleRestore(EffectSet effects) {
+        if (mHandler.hasMessages(MSG_RESTORE_CONTROL, effects)) {
+            return;
+        }
+        final long delay = mControlRecovery.nextDelay(effects.getSessionId(),
+                SystemClock.uptimeMillis());
+        if (DEBUG) Log.d(TAG, "restoring control of " + effects + " in " + delay + "ms");
+        mHandler.sendMessageDelayed(mHandler.obtainMessage(MSG_RESTORE_CONTROL, effects), delay);
+    }
+
+    /**
+     * @return true if the effects still belong to a session or the output mix
+     */
+    private boolean isInUse(EffectSet effects) {
+        if (effects == mGlobalEffects) {
+            return true;
+        }
+        final AudioSession session = mSessions.get(effects.getSessionId());
+        return session != null && session.getEffects() == effects;
+    }
+
+    /**
+     * Backend thread only.
+     */
+    private void onServerDown() {
+        Log.w(TAG, "audioserver died, effects are gone until it is back");
+        mServerDownSince = SystemClock.uptimeMillis();
+        // nothing we send now would arrive, the rebuild sends everything again
+        mHandler.removeMessages(MSG_UPDATE_DSP);
+        mHandler.removeMessages(MSG_RESTORE_CONTROL);
+    }
+
+    /**
+     * audioserver came back, every native effect we held is dead. Re-create them all in one
+     * pass from the saved device preferences, playing sessions first. Backend thread only.
+     */
+    private void rebuildAll() {
+        final long start = SystemClock.uptimeMillis();
+        mServerRestarts++;
+
+        // warm sets are as dead as the rest
+        mHandler.removeMessages(MSG_EXPIRE_POOL);
+        mPool.evictAll();
+
+        final EffectSet global = mGlobalEffects;
+        if (global != null) {
+            mGlobalEffects = null;
+            global.release();
+            // recreated on the output mix right below
+            accountModeTime(true);
+        }
+        final SparseArray<AudioSession> sessions = mSessions;
+        for (int i = 0; i < sessions.size(); i++) {
+            final AudioSession session = sessions.valueAt(i);
+            final EffectSet dead = session.getEffects();
+            if (dead != null) {
+                session.setEffects(null);
+                mScheduler.remove(session.mSessionId);
+                dead.release();
+            }
+        }
+        // falls back to per-session effects on its own if the output mix can't be restored
+        syncOutputMode();
+
+        int rebuilt = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            final boolean wantActive = pass == 0;
+            for (int i = 0; i < sessions.size(); i++) {
+                final AudioSession session = sessions.valueAt(i);
+                if (mPlaybackState.isSessionActive(session.mSessionId) != wantActive
+                        || session.getState() != AudioSession.State.ATTACHED
+                        || session.getEffects() != null
+                        || mGlobalEffects != null) {
+                    continue;
+                }
+                final EffectSet effects = createEffects(session);
+                if (effects != null) {
+                    updateBackend(ALL_CHANGED, effects);
+                }
+            }
+        }
+        scheduleTrim();
+        for (int i = 0; i < sessions.size(); i++) {
+            if (sessions.valueAt(i).getEffects() != null) {
+                rebuilt++;
+            }
+        }
+
+        final long now = SystemClock.uptimeMillis();
+        mLastRebuildMs = now - start;
+        mLastRebuildSessions = rebuilt;
+        if (mServerDownSince > 0) {
+            mLastRestoreMs = now - mServerDownSince;
+            mMaxRestoreMs = Math.max(mMaxRestoreMs, mLastRestoreMs);
+            mServerDownSince = 0;
+        }
+        Log.i(TAG, "rebuilt effects for " + rebuilt + " sessions in " + mLastRebuildMs
+                + "ms after audioserver restart");
+    }
+
+    /**
+     * Make sure we come back to suspend sessions which stay paused. Backend thread only.
+     */
+    private void scheduleSuspend() {
+        if (mSuspendIdleMs > 0 && !mHandler.hasMessages(MSG_SUSPEND_IDLE)) {
+            mHandler.sendEmptyMessageDelayed(MSG_SUSPEND_IDLE, mSuspendIdleMs);
+        }
+    }
+
+    /**
+     * Disable the effects of every session which hasn't played for {@link #mSuspendIdleMs}.
+     * They stay attached, and come back in {@link #resumeSessions(int[], int)}. Backend thread
+     * only.
+     *
+     * @return milliseconds until the next session may be suspended, or -1 if none is waiting
+     */
+    private long suspendIdleSessions() {
+        if (mGlobalEffects != null) {
+            // per-session effects don't exist
+            return -1;
+        }
+        final long now = SystemClock.uptimeMillis();
+        final SparseArray<AudioSession> sessions = mSessions;
+        long next = -1;
+        boolean suspended = false;
+        for (int i = 0; i < sessions.size(); i++) {
+            final AudioSession session = sessions.valueAt(i);
+            final EffectSet effects = session.getEffects();
+            if (effects == null || session.isSuspended()
+                    || session.getState() != AudioSession.State.ATTACHED) {
+                continue;
+            }
+            long since = mPlaybackState.getInactiveSince(session.mSessionId);
+            if (since < 0) {
+                continue;
+            }
+            if (since == 0) {
+                // never played
+                since = session.getAttachedAt();
+            }
+            final long idle = now - since;
+            if (idle < mSuspendIdleMs) {
+                final long wait = mSuspendIdleMs - idle;
+                next = next < 0 ? wait : Math.min(next, wait);
+                continue;
+            }
+            effects.setGlobalEnabled(false);
+            session.setSuspended(true);
+            mSuspensions++;
+            suspended = true;
+            if (DEBUG) Log.d(TAG, "suspended idle " + session);
+        }
+        if (suspended) {
+            // the disabled effects can be released now
+            scheduleTrim();
+        }
+        return next;
+    }
+
+    /**
+     * Bring back the effects of suspended sessions which started playing, in one batch.
+     * Backend thread only.
+     */
+    private void resumeSessions(int[] sessionIds, int count) {
+        final long start = SystemClock.uptimeMillis();
+        final SparseArray<AudioSession> sessions = mSessions;
+        int resumed = 0;
+        for (int i = 0; i < count; i++) {
+            final AudioSession session = sessions.get(sessionIds[i]);
+            if (session == null || !session.isSuspended()) {
+                continue;
+            }
+            session.setSuspended(false);
+            final EffectSet effects = session.getEffects();
+            if (effects == null) {
+                continue;
+            }
+            // device switches skip suspended sessions
+            if (effects.getDevice() != mCurrentDevice) {
+                effects.setDevice(mCurrentDevice);
+            }
+            updateBackend(ALL_CHANGED, effects);
+            resumed++;
+        }
+        if (resumed > 0) {
+            mResumes += resumed;
+            mLastResumeBatch = resumed;
+            mLastResumeMs = SystemClock.uptimeMillis() - start;
+            if (DEBUG) Log.d(TAG, "resumed " + resumed + " sessions in " + mLastResumeMs + "ms");
+        }
+    }
+
+    /**
+     * Make sure we come back to release effects which were disabled by the last update.
+     */
+    private void scheduleTrim() {
+        if (!mHandler.hasMessages(MSG_TRIM_EFFECTS)) {
+            mHandler.sendEmptyMessageDelayed(MSG_TRIM_EFFECTS, mEffectIdleMs);
+        }
+    }
+
+    /**
+     * Release the effects of a session which is still marked for removal. Backend thread only.
+     */
+    private void releaseSession(AudioSession session) {
+        if (!session.transition(AudioSession.State.RELEASING, AudioSession.State.RELEASED)) {
+            // revived in the meantime
+            return;
+        }
+        unregisterSession(session);
+        mScheduler.remove(session.mSessionId);
+        mControlRecovery.remove(session.mSessionId);
+        mPlaybackState.forget(session.mSessionId);
+
+        final EffectSet effects = session.getEffects();
+        session.setEffects(null);
+        if (effects != null) {
+            if (mPool.park(session.mSessionId, session.mUid, effects)) {
+                if (!mHandler.hasMessages(MSG_EXPIRE_POOL)) {
+                    mHandler.sendEmptyMessageDelayed(MSG_EXPIRE_POOL, mPool.getTtl());
+                }
+            } else {
+                effects.release();
+            }
+        }
+        if (DEBUG) Log.w(TAG, "removed and released sessionId=" + session.mSessionId);
+    }
+
+    /**
+     * Apply override band levels, with matching headroom, in one transaction.
+     *
+     * @param levels in decibels
+     */
+    private void applyOverride(EffectSet effects, float[] levels) {
+        // bypassed sets would only get their headroom stage turned back on
+        if (effects == null || !effects.isGlobalEnabled() || !effects.beginUpdate()) {
+            return;
+        }
+        effects.setEqualizerLevelsDecibels(levels);
+        effects.setPreGain(mHeadroom.getPreGain(effects, levels));
+        effects.commitUpdate();
+    }
+
     private class AudioServiceHandler implements Handler.Callback {
 
         @Override
         public boolean handleMessage(Message msg) {
-            synchronized (mAudioSessionsL) {
-                EffectSet session = null;
-                Integer sessionId = 0;
-                int flags = 0;
-
-                switch (msg.what) {
-                    case MSG_ADD_SESSION:
-                        /**
-                         * msg.obj = sessionId
-                         */
-                        sessionId = (Integer) msg.obj;
-                        if (sessionId == null || sessionId <= 0) {
-                            break;
-                        }
+            switch (msg.what) {
+                case MSG_ADD_SESSION:
+                    /**
+                     * msg.obj = AudioSession
+                     */
+                    attachSession((AudioSession) msg.obj);
+                    break;
 
-                        session = mAudioSessionsL.get(sessionId);
-                        if (session == null) {
-                            try {
-                                session = new EffectsFactory()
-                                        .createEffectSet(mContext, sessionId, mCurrentDevice);
-                            } catch (Exception e) {
-                                Log.e(TAG, "couldn't create effects for session id: " + sessionId,
-                                        e);
-                                break;
-                            }
-                            mAudioSessionsL.put(sessionId, session);
-                            if (DEBUG) Log.w(TAG, "added new EffectSet for sessionId=" + sessionId);
-                            updateBackendLocked(ALL_CHANGED, session);
-                        } else {
-                            session.setMarkedForDeath(false);
-                        }
-                        break;
-
-                    case MSG_REMOVE_SESSION:
-                        /**
-                         * msg.obj = sessionId
-                         */
-                        sessionId = (Integer) msg.obj;
-                        if (sessionId == null || sessionId <= 0) {
-                            break;
-                        }
+                case MSG_REMOVE_SESSION:
+                    /**
+                     * msg.obj = AudioSession
+                     */
+                    releaseSession((AudioSession) msg.obj);
+                    break;
 
-                        session = mAudioSessionsL.get(sessionId);
-                        if (session != null && session.isMarkedForDeath()) {
-                            mHandler.removeMessages(MSG_UPDATE_FOR_SESSION, sessionId);
-                            session.release();
-                            mAudioSessionsL.remove(sessionId);
-                            if (DEBUG) Log.w(TAG, "removed and released sessionId=" + sessionId);
+                case MSG_EXPIRE_POOL:
+                    final long next = mPool.expire();
+                    if (next >= 0) {
+                        mHandler.sendEmptyMessageDelayed(MSG_EXPIRE_POOL, next);
+                    }
+                    break;
+
+                case MSG_TRIM_EFFECTS:
+                    /**
+                     * release individual effects which stayed disabled long enough
+                     */
+                    final SparseArray<AudioSession> attached = mSessions;
+                    long nextTrim = -1;
+                    for (int i = -1; i < attached.size(); i++) {
+                        final EffectSet effects = i < 0
+                                ? mGlobalEffects : attached.valueAt(i).getEffects();
+                        if (effects == null) {
+                            continue;
                         }
+                        final long idle = effects.trimIdleEffects(mEffectIdleMs);
+                        if (idle >= 0 && (nextTrim < 0 || idle < nextTrim)) {
+                            nextTrim = idle;
+                        }
+                    }
+                    if (nextTrim >= 0) {
+                        mHandler.sendEmptyMessageDelayed(MSG_TRIM_EFFECTS, nextTrim);
+                    }
+                    break;
 
-                        break;
+                case MSG_RESTORE_CONTROL:
+                    /**
+                     * msg.obj = EffectSet
+                     *
+                     * only the taken over effects lost their shadow, so a full update
+                     * only writes those again
+                     */
+                    final EffectSet restored = (EffectSet) msg.obj;
+                    if (isInUse(restored) && restored.restoreControl()) {
+                        mScheduler.mark(restored.getSessionId(), ALL_CHANGED);
+                        scheduleDrain();
+                    }
+                    break;
 
-                    case MSG_UPDATE_DSP:
-                        /**
-                         * msg.arg1 = update what flags
-                         */
-                        flags = msg.arg1;
+                case MSG_SUSPEND_IDLE:
+                    final long nextSuspend = suspendIdleSessions();
+                    if (nextSuspend >= 0) {
+                        mHandler.sendEmptyMessageDelayed(MSG_SUSPEND_IDLE, nextSuspend);
+                    }
+                    break;
 
-                        final String mode = getCurrentDeviceIdentifier();
-                        if (DEBUG) Log.i(TAG, "Updating to configuration: " + mode);
+                case MSG_EVICT_POOL:
+                    mHandler.removeMessages(MSG_EXPIRE_POOL);
+                    mPool.evictAll();
+                    break;
 
-                        final int N = mAudioSessionsL.size();
-                        for (int i = 0; i < N; i++) {
-                            sessionId = mAudioSessionsL.keyAt(i);
-                            mHandler.obtainMessage(MSG_UPDATE_FOR_SESSION, flags, 0,
-                                    sessionId).sendToTarget();
-                        }
-                        break;
-
-                    case MSG_UPDATE_FOR_SESSION:
-                        /**
-                         * msg.arg1 = update what flags
-                         * msg.arg2 = unused
-                         * msg.obj = session id integer (for consistency)
-                         */
-                        sessionId = (Integer) msg.obj;
-                        flags = msg.arg1;
-
-                        if (sessionId == null || sessionId <= 0) {
-                            break;
+                case MSG_UPDATE_DSP:
+                    /**
+                     * drain tick, apply the latest eq override and then update every
+                     * session with pending flags once
+                     */
+                    final SparseArray<AudioSession> sessions = mSessions;
+                    final float[] override = mEqOverride.consume(mEqOverrideLevels);
+                    if (override != null) {
+                        mEqOverrideLevels = override;
+                        for (int i = 0; i < sessions.size(); i++) {
+                            final AudioSession session = sessions.valueAt(i);
+                            if (!session.isSuspended()) {
+                                applyOverride(session.getEffects(), override);
+                            }
                         }
+                        applyOverride(mGlobalEffects, override);
+                    }
+
+                    final int N = mScheduler.drain();
+                    for (int i = 0; i < N; i++) {
+                        final int sessionId = mScheduler.getBatchSession(i);
+                        final int flags = mScheduler.getBatchFlags(i);
 
-                        String device = getCurrentDeviceIdentifier();
                         if (DEBUG) {
                             Log.i(TAG, "updating DSP for sessionId=" + sessionId +
-                                    ", device=" + device + " flags=" + flags);
+                                    ", device=" + getCurrentDeviceIdentifier()
+                                    + " flags=" + flags);
                         }
 
-                        session = mAudioSessionsL.get(sessionId);
-                        if (session != null) {
-                            updateBackendLocked(flags, session);
+                        if (sessionId == GLOBAL_MIX_SESSION) {
+                            updateBackend(flags, mGlobalEffects);
+                            continue;
                         }
-                        break;
-
-                    case MSG_UPDATE_EQ_OVERRIDE:
-                        for (int i = 0; i < mAudioSessionsL.size(); i++) {
-                            sessionId = mAudioSessionsL.keyAt(i);
-                            session = mAudioSessionsL.get(sessionId);
-                            if (session != null) {
-                                session.setEqualizerBandLevel((short) msg.arg1, (float) msg.obj);
-                            }
+                        final AudioSession session = sessions.get(sessionId);
+                        // suspended sessions get everything once they resume
+                        if (session != null && session.getEffects() != null
+                                && !session.isSuspended()) {
+                            updateBackend(flags, session.getEffects());
                         }
-                        break;
-                }
-                return true;
+                    }
+                    if (N > 0) {
+                        mScheduler.onBatchComplete();
+                        scheduleTrim();
+                    }
+                    // anything that came in while we were busy goes out on the next tick
+                    scheduleDrain();
+                    break;
             }
+            return true;
         }
     }
 
@@ -355,22 +1185,25 @@ class SessionManager implements AudioOutputChangeListener.AudioOutputChangedCall
      */
     @Override
     public void onAudioOutputChanged(boolean firstChange, AudioDeviceInfo outputDevice) {
-        synchronized (mAudioSessionsL) {
-            if (mCurrentDevice == null ||
-                    (outputDevice != null && mCurrentDevice.getId() != outputDevice.getId())) {
-                mCurrentDevice = outputDevice;
-            }
-
-            EffectSet session = null;
-
-            // Update all the sessions for this output which are moving
-            final int N = mAudioSessionsL.size();
-            for (int i = 0; i < N; i++) {
-                session = mAudioSessionsL.valueAt(i);
+        if (mCurrentDevice == null ||
+                (outputDevice != null && mCurrentDevice.getId() != outputDevice.getId())) {
+            mCurrentDevice = outputDevice;
+        }
 
-                session.setDevice(mCurrentDevice);
-                updateBackendLocked(ALL_CHANGED, session);
-            }
+        // the new device may want the other output mode
+        syncOutputMode();
+        final EffectSet global = mGlobalEffects;
+        if (global != null) {
+            global.setDevice(mCurrentDevice);
+            updateBackend(ALL_CHANGED, global);
         }
+
+        // Update all the sessions for this output which are moving, in parallel
+        final AudioDeviceInfo device = mCurrentDevice;
+        mDeviceSwitcher.switchAll(mSessions, session -> {
+            session.setDevice(device);
+            updateBackend(ALL_CHANGED, session);
+        });
+        scheduleTrim();
     }
 }
@@ -0,0 +1,150 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.service;
+
+import android.os.SystemClock;
+import android.util.SparseIntArray;
+
+import java.io.PrintWriter;
+
+/**
+ * Coalesces backend updates per session.
+ * <p>
+ * Every session has a single pending dirty-flag bitmask which new updates are OR'ed into. A drain
+ * tick takes all pending sessions at once, playing sessions first, so that each session is
+ * updated at most once per tick no matter how many updates were requested in between.
+ */
+class UpdateScheduler {
+
+    /**
+     * Minimum interval between two drain ticks
+     */
+    static final long TICK_MS = 20;
+
+    private final PlaybackStateTracker mPlaybackState;
+
+    // session id -> pending flags
+    private final SparseIntArray mPending = new SparseIntArray();
+    private long mOldestPendingTime = 0;
+    private volatile long mLastTickTime = -TICK_MS;
+
+    // the batch taken by the last drain, only touched from the handler thread
+    private int[] mBatchSessions = new int[8];
+    private int[] mBatchFlags = new int[8];
+    private long mBatchQueuedTime = 0;
+
+    // metrics
+    private long mUpdates = 0;
+    private long mMerged = 0;
+    private long mTicks = 0;
+    private int mLastDepth = 0;
+    private int mMaxDepth = 0;
+    private long mLastLatency = 0;
+    private long mMaxLatency = 0;
+    private long mTotalLatency = 0;
+
+    UpdateScheduler(PlaybackStateTracker playbackState) {
+        mPlaybackState = playbackState;
+    }
+
+    /**
+     * Mark a session as needing an update.
+     *
+     * @return true if the session had nothing pending before
+     */
+    synchronized boolean mark(int sessionId, int flags) {
+        mUpdates++;
+        final int pending = mPending.get(sessionId, 0);
+        if (pending != 0) {
+            mPending.put(sessionId, pending | flags);
+            mMerged++;
+            return false;
+        }
+        if (mPending.size() == 0) {
+            mOldestPendingTime = SystemClock.uptimeMillis();
+        }
+        mPending.put(sessionId, flags);
+        return true;
+    }
+
+    synchronized void remove(int sessionId) {
+        mPending.delete(sessionId);
+    }
+
+    synchronized boolean hasPending() {
+        return mPending.size() > 0;
+    }
+
+    /**
+     * @return how long to wait before the next drain tick may run
+     */
+    synchronized long getTickDelay() {
+        return Math.max(0, mLastTickTime + TICK_MS - SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Take every pending session into the current batch, playing sessions first.
+     *
+     * @return the number of sessions in the batch
+     */
+    synchronized int drain() {
+        mLastTickTime = SystemClock.uptimeMillis();
+        final int n = mPending.size();
+        if (n == 0) {
+            return 0;
+        }
+        if (mBatchSessions.length < n) {
+            mBatchSessions = new int[n];
+            mBatchFlags = new int[n];
+        }
+
+        int out = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            final boolean wantActive = pass == 0;
+            for (int i = 0; i < n; i++) {
+                final int sessionId = mPending.keyAt(i);
+                if (mPlaybackState.isSessionActive(sessionId) == wantActive) {
+                    mBatchSessions[out] = sessionId;
+                    mBatchFlags[out] = mPending.valueAt(i);
+                    out++;
+                }
+            }
+        }
+        mPending.clear();
+
+        mBatchQueuedTime = mOldestPendingTime;
+        mTicks++;
+        mLastDepth = n;
+        mMaxDepth = Math.max(mMaxDepth, n);
+        return n;
+    }
+
+    int getBatchSession(int index) {
+        return mBatchSessions[index];
+    }
+
+    int getBatchFlags(int index) {
+        return mBatchFlags[index];
+    }
+
+    /**
+     * Called once every session in the current batch has been updated.
+     */
+    synchronized void onBatchComplete() {
+        mLastLatency = SystemClock.uptimeMillis() - mBatchQueuedTime;
+        mMaxLatency = Math.max(mMaxLatency, mLastLatency);
+        mTotalLatency += mLastLatency;
+    }
+
+    synchronized void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "UpdateScheduler");
+        pw.println(prefix + "  pending: " + mPending.size()
+                + " updates: " + mUpdates + " merged: " + mMerged + " ticks: " + mTicks);
+        pw.println(prefix + "  queue depth last: " + mLastDepth + " max: " + mMaxDepth);
+        pw.println(prefix + "  drain latency last: " + mLastLatency + "ms max: " + mMaxLatency
+                + "ms avg: " + (mTicks > 0 ? mTotalLatency / mTicks : 0) + "ms");
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.backends;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.lineageos.audiofx.eq.Biquad;
+
+public class SoftwareEqualizerTest {
+
+    private static final int[] ONE_BAND = {1000000}; // 1 kHz
+
+    private static float[] sine(double frequency, int sampleRate, int frames) {
+        final float[] buffer = new float[frames];
+        for (int i = 0; i < frames; i++) {
+            buffer[i] = (float) (0.25 * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+        }
+        return buffer;
+    }
+
+    /**
+     * @return peak amplitude over the second half of the buffer, once the filter has settled
+     */
+    private static float settledPeak(float[] buffer) {
+        float peak = 0;
+        for (int i = buffer.length / 2; i < buffer.length; i++) {
+            peak = Math.max(peak, Math.abs(buffer[i]));
+        }
+        return peak;
+    }
+
+    private static float[] impulse(int frames) {
+        final float[] buffer = new float[frames];
+        buffer[0] = 1;
+        return buffer;
+    }
+
+    @Test
+    public void unityLeavesSamplesUntouched() {
+        final SoftwareEqualizer eq = new SoftwareEqualizer(
+                new int[]{60000, 230000, 910000, 3600000, 14000000}, 2, 48000);
+        final float[] input = sine(440, 48000, 512);
+        final float[] buffer = input.clone();
+        eq.process(buffer, 0, buffer.length / 2);
+        assertArrayEquals(input, buffer, 0f);
+
+        final short[] pcm = {0, 1, -1, Short.MAX_VALUE, Short.MIN_VALUE, 1234};
+        final short[] out = pcm.clone();
+        eq.process(out, 0, out.length / 2);
+        assertArrayEquals(pcm, out);
+    }
+
+    @Test
+    public void boostsItsCenterFrequency() {
+        final SoftwareEqualizer eq = new SoftwareEqualizer(ONE_BAND, 1, 48000);
+        eq.setBandLevel(0, (short) 600);
+        final float[] buffer = sine(1000, 48000, 9600);
+        eq.process(buffer, 0, buffer.length);
+        // +6 dB
+        assertEquals(0.25f * 1.9952623f, settledPeak(buffer), 0.005f);
+    }
+
+    @Test
+    public void followsSampleRateChange() {
+        final SoftwareEqualizer eq = new SoftwareEqualizer(ONE_BAND, 1, 48000);
+        eq.setBandLevel(0, (short) 600);
+        eq.process(sine(1000, 48000, 4800), 0, 4800);
+
+        eq.setSampleRate(44100);
+        assertEquals(44100, eq.getSampleRate());
+
+        // history is dropped, the first output is b0 of the new rate's filter
+        final float[] c = new float[Biquad.COEFFS];
+        Biquad.peaking(44100, 1000, Biquad.qForRatio(2), 6, c, 0);
+        final float[] first = impulse(1);
+        eq.process(first, 0, 1);
+        assertEquals(c[Biquad.B0], first[0], 1e-6f);
+
+        // and the band still sits at 1 kHz
+        final float[] buffer = sine(1000, 44100, 8820);
+        eq.process(buffer, 0, buffer.length);
+        assertEquals(0.25f * 1.9952623f, settledPeak(buffer), 0.005f);
+    }
+
+    @Test
+    public void returningFromUnityStartsFresh() {
+        final SoftwareEqualizer fresh = new SoftwareEqualizer(ONE_BAND, 1, 48000);
+        fresh.setBandLevel(0, (short) 600);
+        final float[] expected = impulse(64);
+        fresh.process(expected, 0, expected.length);
+
+        final SoftwareEqualizer eq = new SoftwareEqualizer(ONE_BAND, 1, 48000);
+        eq.setBandLevel(0, (short) 600);
+        eq.process(sine(1000, 48000, 100), 0, 100);
+        eq.setBandLevel(0, (short) 0);
+        eq.setBandLevel(0, (short) 600);
+        final float[] buffer = impulse(64);
+        eq.process(buffer, 0, buffer.length);
+        assertArrayEquals(expected, buffer, 0f);
+    }
+
+    @Test
+    public void gainAppliesWhileDisabled() {
+        final SoftwareEqualizer eq = new SoftwareEqualizer(ONE_BAND, 1, 48000);
+        eq.setEnabled(false);
+        eq.setGain(-6.0206f);
+        final float[] buffer = {1f, -0.5f};
+        eq.process(buffer, 0, buffer.length);
+        assertArrayEquals(new float[]{0.5f, -0.25f}, buffer, 1e-4f);
+    }
+}
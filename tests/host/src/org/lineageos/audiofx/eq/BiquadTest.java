@@ -0,0 +1,59 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.eq;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class BiquadTest {
+
+    private static final float[] IDENTITY = {1, 0, 0, 0, 0};
+
+    @Test
+    public void peakingMatchesCookbook() {
+        // RBJ cookbook peakingEQ, fs 48 kHz, f0 1 kHz, Q sqrt(2), +6 dB
+        final float[] expected = {
+                1.0314868f, -1.9201577f, 0.9052398f, -1.9201577f, 0.9367266f};
+        final float[] coeffs = new float[Biquad.COEFFS];
+        Biquad.peaking(48000, 1000, Math.sqrt(2), 6, coeffs, 0);
+        assertArrayEquals(expected, coeffs, 1e-6f);
+    }
+
+    @Test
+    public void peakingWritesAtOffset() {
+        final float[] coeffs = new float[Biquad.COEFFS * 2];
+        Biquad.peaking(48000, 1000, Math.sqrt(2), 6, coeffs, Biquad.COEFFS);
+        assertEquals(1.0314868f, coeffs[Biquad.COEFFS + Biquad.B0], 1e-6f);
+        assertEquals(0f, coeffs[Biquad.B0], 0f);
+    }
+
+    @Test
+    public void zeroGainIsIdentity() {
+        final float[] coeffs = new float[Biquad.COEFFS];
+        Biquad.peaking(48000, 1000, Math.sqrt(2), 0, coeffs, 0);
+        assertArrayEquals(IDENTITY, coeffs, 0f);
+    }
+
+    @Test
+    public void bandAboveNyquistIsIdentity() {
+        final float[] coeffs = new float[Biquad.COEFFS];
+        Biquad.peaking(32000, 16000, Math.sqrt(2), 6, coeffs, 0);
+        assertArrayEquals(IDENTITY, coeffs, 0f);
+    }
+
+    @Test
+    public void octaveSpacingGivesOctaveQ() {
+        assertEquals(Math.sqrt(2), Biquad.qForRatio(2), 1e-9);
+
+        final double[] q = new double[3];
+        Biquad.qForBands(new int[]{250000, 500000, 1000000}, q);
+        for (double value : q) {
+            assertEquals(Math.sqrt(2), value, 1e-9);
+        }
+    }
+}
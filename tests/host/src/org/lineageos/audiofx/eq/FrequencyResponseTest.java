@@ -0,0 +1,76 @@
+/*
+ * SPDX-FileCopyrightText: 2026 The LineageOS Project
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.lineageos.audiofx.eq;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencyResponseTest {
+
+    private static final int[] ONE_BAND = {1000000}; // 1 kHz
+
+    @Test
+    public void gainAtCenterIsBandLevel() {
+        // every point sits on the band center
+        final FrequencyResponse response = new FrequencyResponse(ONE_BAND, 1000, 1000, 2, 48000);
+        final float[] dB = response.compute(new float[]{6});
+        assertEquals(6f, dB[0], 1e-3f);
+        assertEquals(6f, response.getPeak(), 1e-3f);
+
+        response.compute(new float[]{-9});
+        assertEquals(-9f, response.getPeak(), 1e-3f);
+    }
+
+    @Test
+    public void flatLevelsAreUnity() {
+        final int[] bands = {60000, 230000, 910000, 3600000, 14000000};
+        final FrequencyResponse response = new FrequencyResponse(bands, 20, 20000, 128, 48000);
+        final float[] dB = response.compute(new float[5]);
+        for (float value : dB) {
+            assertEquals(0f, value, 0f);
+        }
+        assertEquals(0f, response.getPeak(), 0f);
+    }
+
+    @Test
+    public void gainFallsOffAwayFromCenter() {
+        final FrequencyResponse response = new FrequencyResponse(ONE_BAND, 20, 20000, 128, 48000);
+        final float[] dB = response.compute(new float[]{12});
+        assertTrue(dB[0] < 0.1f);
+        assertTrue(dB[response.getNumPoints() - 1] < 0.5f);
+        assertEquals(12f, response.getPeak(), 0.1f);
+    }
+
+    @Test
+    public void matchesCoefficientsOnTheUnitCircle() {
+        final FrequencyResponse response = new FrequencyResponse(ONE_BAND, 100, 10000, 16, 48000);
+        final float[] dB = response.compute(new float[]{6});
+
+        final float[] c = new float[Biquad.COEFFS];
+        Biquad.peaking(48000, 1000, Biquad.qForRatio(2), 6, c, 0);
+        for (int i = 0; i < response.getNumPoints(); i++) {
+            final double w = 2 * Math.PI * response.getFrequency(i) / 48000;
+            final double numRe = c[Biquad.B0] + c[Biquad.B1] * Math.cos(w)
+                    + c[Biquad.B2] * Math.cos(2 * w);
+            final double numIm = -c[Biquad.B1] * Math.sin(w) - c[Biquad.B2] * Math.sin(2 * w);
+            final double denRe = 1 + c[Biquad.A1] * Math.cos(w) + c[Biquad.A2] * Math.cos(2 * w);
+            final double denIm = -c[Biquad.A1] * Math.sin(w) - c[Biquad.A2] * Math.sin(2 * w);
+            final double expected = 10 * Math.log10((numRe * numRe + numIm * numIm)
+                    / (denRe * denRe + denIm * denIm));
+            assertEquals(expected, dB[i], 1e-3);
+        }
+    }
+
+    @Test
+    public void recomputesAfterReturningToUnity() {
+        final FrequencyResponse response = new FrequencyResponse(ONE_BAND, 1000, 1000, 2, 48000);
+        response.compute(new float[]{6});
+        assertEquals(0f, response.compute(new float[]{0})[0], 0f);
+        assertEquals(6f, response.compute(new float[]{6})[0], 1e-3f);
+    }
+}